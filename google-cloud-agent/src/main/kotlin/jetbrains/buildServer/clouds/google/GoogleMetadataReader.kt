@@ -10,100 +10,262 @@ import jetbrains.buildServer.agent.BuildAgent
 import jetbrains.buildServer.agent.BuildAgentConfigurationEx
 import jetbrains.buildServer.clouds.CloudInstanceUserData
 import jetbrains.buildServer.util.EventDispatcher
+import jetbrains.buildServer.util.executors.ExecutorsFactory
 import org.apache.http.client.config.RequestConfig
 import org.apache.http.client.methods.HttpGet
 import org.apache.http.impl.client.HttpClients
 import org.apache.http.util.EntityUtils
+import java.io.File
+import java.io.IOException
+import java.net.InetAddress
 import java.net.SocketTimeoutException
 
+/**
+ * Configures agent from the Google Compute instance metadata.
+ *
+ * The last good metadata is cached on disk and applied at startup of a restarted agent
+ * only when metadata server is not reachable, then metadata server is watched for changes
+ * of idle timeout and configuration parameters.
+ */
 class GoogleMetadataReader(events: EventDispatcher<AgentLifeCycleListener>,
                            private val configuration: BuildAgentConfigurationEx,
                            private val idleShutdown: IdleShutdown) {
 
+    private val myCache = MetadataCache(File(configuration.systemDirectory, CACHE_FILE_NAME))
+    private val myWatcher = ExecutorsFactory.newFixedScheduledDaemonExecutor("Google instance metadata watcher", 1)
+    private val myClient = HttpClients.custom()
+            .useSystemProperties()
+            .setDefaultRequestConfig(RequestConfig.custom()
+                    .setConnectTimeout(COMPUTE_PING_CONNECTION_TIMEOUT_MS)
+                    .build())
+            .build()
+    @Volatile
+    private var myMetadata: String? = null
+    @Volatile
+    private var myRequest: HttpGet? = null
+    @Volatile
+    private var myStopped = false
+
     init {
         LOG.info("Google plugin initializing...")
 
         events.addListener(object : AgentLifeCycleAdapter() {
             override fun afterAgentConfigurationLoaded(agent: BuildAgent) {
-                fetchConfiguration()
+                if (!fetchConfiguration()) {
+                    applyCachedConfiguration()
+                }
+            }
+
+            override fun agentShutdown() {
+                myStopped = true
+                myRequest?.abort()
+                myWatcher.shutdownNow()
+                myClient.close()
             }
         })
     }
 
-    private fun fetchConfiguration() {
-        val requestConfig = RequestConfig.custom()
-                .setConnectTimeout(COMPUTE_PING_CONNECTION_TIMEOUT_MS)
-                .build()
-
-        HttpClients.custom()
-                .useSystemProperties()
-                .setDefaultRequestConfig(requestConfig)
-                .build().use { client ->
-                    for (i in 1..MAX_COMPUTE_PING_TRIES) {
-                        val response = try {
-                            client.execute(HttpGet(instanceMetadataUrl).apply {
-                                addHeader(GCE_METADATA_HEADER, "Google")
-                            })
-                        } catch (ignored: SocketTimeoutException) {
-                            // Ignore logging timeouts which is the expected failure mode in non GCE environments.
-                            continue
-                        } catch (e: Exception) {
-                            LOG.info(ERROR_GCE_UNAVAILABLE + "Failed to connect to $metadataServerUrl: ${e.message}")
-                            return@use
-                        }
-
-                        val statusCode = response.statusLine.statusCode
-                        if (statusCode != 200) {
-                            LOG.info(ERROR_GCE_UNAVAILABLE + "Failed to connect to $metadataServerUrl: HTTP $statusCode")
-                            return@use
-                        }
-
-                        if (response.getHeaders(GCE_METADATA_HEADER).any { it.value == "Google" }) {
-                            updateConfiguration(EntityUtils.toString(response.entity))
-                        } else {
-                            LOG.info(ERROR_GCE_UNAVAILABLE + "Invalid $GCE_METADATA_HEADER header")
-                        }
+    /**
+     * Fetches and applies current instance metadata.
+     *
+     * @return false if metadata server was not reachable.
+     */
+    private fun fetchConfiguration(): Boolean {
+        for (i in 1..MAX_COMPUTE_PING_TRIES) {
+            val response = try {
+                request(instanceMetadataUrl)
+            } catch (ignored: SocketTimeoutException) {
+                // Ignore logging timeouts which is the expected failure mode in non GCE environments.
+                continue
+            } catch (e: Exception) {
+                LOG.info(ERROR_GCE_UNAVAILABLE + "Failed to connect to $metadataServerUrl: ${e.message}")
+                return false
+            }
+
+            if (response.statusCode != 200) {
+                LOG.info(ERROR_GCE_UNAVAILABLE + "Failed to connect to $metadataServerUrl: HTTP ${response.statusCode}")
+                return false
+            }
+
+            if (!response.isGoogle) {
+                LOG.info(ERROR_GCE_UNAVAILABLE + "Invalid $GCE_METADATA_HEADER header")
+                return false
+            }
+
+            if (applyConfiguration(response.json, true)) {
+                myCache.write(response.json)
+                myWatcher.execute { watchMetadata(response.etag) }
+            } else {
+                myCache.clear()
+            }
+            return true
+        }
+        return false
+    }
+
+    /**
+     * Applies the last good metadata when metadata server was not reachable at startup,
+     * e.g. the agent was restarted during a metadata server outage.
+     */
+    private fun applyCachedConfiguration() {
+        val cached = myCache.read() ?: return
+        if (isCachedForThisInstance(cached) && applyConfiguration(cached, true)) {
+            LOG.info("Applied cached instance metadata, will refresh it when metadata server is available")
+            myWatcher.execute { watchMetadata(null) }
+        }
+    }
+
+    /**
+     * Waits for metadata changes until agent shutdown.
+     *
+     * @param etag of the applied metadata, null to fetch current metadata first.
+     */
+    private fun watchMetadata(etag: String?) {
+        var lastEtag = etag
+        var retryDelay = MIN_RETRY_DELAY_MS
+        while (!myStopped) {
+            try {
+                val url = if (lastEtag == null) {
+                    instanceMetadataUrl
+                } else {
+                    "$instanceMetadataUrl&wait_for_change=true&timeout_sec=$WAIT_FOR_CHANGE_TIMEOUT_SEC&last_etag=$lastEtag"
+                }
+                val response = request(url, (WAIT_FOR_CHANGE_TIMEOUT_SEC + 10) * 1000)
+                if (response.statusCode != 200 || !response.isGoogle) {
+                    throw IOException("HTTP ${response.statusCode}")
+                }
+
+                // Metadata server returns unchanged metadata with the same ETag when wait timeout elapses
+                if (lastEtag == null || response.etag != lastEtag) {
+                    if (response.json != myMetadata && applyConfiguration(response.json, false)) {
+                        myCache.write(response.json)
                     }
                 }
+                lastEtag = response.etag
+                retryDelay = MIN_RETRY_DELAY_MS
+            } catch (e: Exception) {
+                if (myStopped) return
+                LOG.debug("Failed to wait for instance metadata changes, will retry in ${retryDelay / 1000} seconds: ${e.message}", e)
+                try {
+                    Thread.sleep(retryDelay)
+                } catch (e: InterruptedException) {
+                    return
+                }
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS)
+            }
+        }
+    }
+
+    private fun request(url: String, socketTimeout: Int = -1): MetadataResponse {
+        val request = HttpGet(url).apply {
+            addHeader(GCE_METADATA_HEADER, "Google")
+            config = RequestConfig.custom()
+                    .setConnectTimeout(COMPUTE_PING_CONNECTION_TIMEOUT_MS)
+                    .setSocketTimeout(socketTimeout)
+                    .build()
+        }
+        myRequest = request
+        try {
+            return myClient.execute(request).use { response ->
+                MetadataResponse(response.statusLine.statusCode,
+                        response.getHeaders(GCE_METADATA_HEADER).any { it.value == "Google" },
+                        response.getFirstHeader(ETAG_HEADER)?.value,
+                        response.entity?.let { EntityUtils.toString(it) } ?: "")
+            }
+        } finally {
+            myRequest = null
+        }
     }
 
-    private fun updateConfiguration(json: String) {
+    /**
+     * Cached metadata could come from a disk image made of another agent instance,
+     * so it is applied only when the host name matches the instance name.
+     */
+    private fun isCachedForThisInstance(json: String): Boolean {
+        val name = deserializeMetadata(json)?.name ?: return false
+        val hostName = try {
+            InetAddress.getLocalHost().hostName
+        } catch (e: Exception) {
+            LOG.debug("Failed to resolve local host name: ${e.message}")
+            return false
+        }
+        if (hostName.substringBefore('.').equals(name, true)) {
+            return true
+        }
+
+        LOG.info("Ignoring cached instance metadata of \"$name\" on host \"$hostName\"")
+        return false
+    }
+
+    /**
+     * Applies instance metadata.
+     *
+     * @param initial whether agent name and server URL could be changed.
+     * @return true if metadata contains TeamCity data.
+     */
+    @Synchronized
+    private fun applyConfiguration(json: String, initial: Boolean): Boolean {
         val metadata = deserializeMetadata(json)
         if (metadata == null) {
             LOG.info("Google Compute integration is not available: Invalid instance metadata")
             LOG.debug(json)
-            return
+            return false
         }
 
         val data = CloudInstanceUserData.deserialize(metadata.attributes?.teamcityData ?: "")
         if (data == null) {
             LOG.info("Google Compute integration is not available: No TeamCity metadata")
             LOG.debug(json)
-            return
+            return false
         }
 
-        LOG.info("Google Compute integration is available, will register agent \"${metadata.name}\" on server URL \"${data.serverAddress}\"")
-        configuration.name = metadata.name
-        configuration.serverUrl = data.serverAddress
+        if (initial) {
+            LOG.info("Google Compute integration is available, will register agent \"${metadata.name}\" on server URL \"${data.serverAddress}\"")
+            configuration.name = metadata.name
+            configuration.serverUrl = data.serverAddress
 
-        metadata.networkInterfaces.firstOrNull()?.let { network ->
-            network.accessConfigs.firstOrNull()?.let {
-                LOG.info("Setting external IP address: ${it.externalIp}")
-                configuration.addAlternativeAgentAddress(it.externalIp)
+            metadata.networkInterfaces.firstOrNull()?.let { network ->
+                network.accessConfigs.firstOrNull()?.let {
+                    LOG.info("Setting external IP address: ${it.externalIp}")
+                    configuration.addAlternativeAgentAddress(it.externalIp)
+                }
+            }
+
+            configuration.addConfigurationParameter(GoogleAgentProperties.INSTANCE_NAME, metadata.name)
+            // Let the server find the cloud image of the agent without scanning all images
+            metadata.attributes?.teamcityProfile?.let {
+                configuration.addConfigurationParameter(GoogleAgentProperties.PROFILE_ID, it)
+            }
+            metadata.attributes?.teamcitySource?.let {
+                configuration.addConfigurationParameter(GoogleAgentProperties.SOURCE_ID, it)
+            }
+        } else {
+            LOG.info("Instance metadata was changed, updating agent configuration")
+            if (metadata.name != configuration.name || data.serverAddress != configuration.serverUrl) {
+                LOG.warn("Agent name or server URL was changed in the instance metadata, agent restart is required to apply it")
             }
         }
 
-        configuration.addConfigurationParameter(GoogleAgentProperties.INSTANCE_NAME, metadata.name)
         data.customAgentConfigurationParameters.entries.forEach {
-            configuration.addConfigurationParameter(it.key, it.value)
-            LOG.info("Added config parameter: ${it.key} => ${it.value}")
+            if (configuration.configurationParameters[it.key] != it.value) {
+                configuration.addConfigurationParameter(it.key, it.value)
+                LOG.info("Added config parameter: ${it.key} => ${it.value}")
+            }
         }
 
         data.idleTimeout?.let {
             idleShutdown.setIdleTime(it)
         }
+
+        myMetadata = json
+        return true
     }
 
+    private class MetadataResponse(val statusCode: Int,
+                                   val isGoogle: Boolean,
+                                   val etag: String?,
+                                   val json: String)
+
     data class Metadata(
             val attributes: MetadataAttributes?,
             val name: String,
@@ -111,7 +273,9 @@ class GoogleMetadataReader(events: EventDispatcher<AgentLifeCycleListener>,
     )
 
     data class MetadataAttributes(
-            val teamcityData: String?
+            val teamcityData: String?,
+            val teamcityProfile: String?,
+            val teamcitySource: String?
     )
 
     data class NetworkInterface(
@@ -131,6 +295,8 @@ class GoogleMetadataReader(events: EventDispatcher<AgentLifeCycleListener>,
         private const val METADATA_API_URL = "/computeMetadata/v1/instance/?recursive=true"
         private const val GCE_METADATA_HOST_ENV_VAR = "GCE_METADATA_HOST"
         private const val GCE_METADATA_HEADER = "Metadata-Flavor"
+        private const val ETAG_HEADER = "ETag"
+        private const val CACHE_FILE_NAME = "google/metadata.json"
         private const val ERROR_GCE_UNAVAILABLE = "Google Compute integration is not available: "
 
         // Note: the explicit `timeout` and `tries` below is a workaround. The underlying
@@ -144,6 +310,10 @@ class GoogleMetadataReader(events: EventDispatcher<AgentLifeCycleListener>,
         private const val MAX_COMPUTE_PING_TRIES = 3
         private const val COMPUTE_PING_CONNECTION_TIMEOUT_MS = 500
 
+        private const val WAIT_FOR_CHANGE_TIMEOUT_SEC = 300
+        private const val MIN_RETRY_DELAY_MS = 5000L
+        private const val MAX_RETRY_DELAY_MS = 5 * 60 * 1000L
+
         fun deserializeMetadata(json: String) = try {
             GSON.fromJson<Metadata>(json, Metadata::class.java)
         } catch (e: Exception) {
@@ -11,6 +11,7 @@ import jetbrains.buildServer.util.EventDispatcher
 import jetbrains.buildServer.util.RunCommand
 import jetbrains.buildServer.util.executors.ExecutorsFactory
 import java.text.MessageFormat
+import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
 
 /**
@@ -33,24 +34,41 @@ class IdleShutdown(private val myTracker: AgentIdleTimeTracker,
         })
     }
 
+    private var myIdleTime: Long? = null
+    private var myCheck: ScheduledFuture<*>? = null
+    private var myGeneration = 0
+
+    /**
+     * Sets idle time after which instance will be shut down, could be changed at runtime.
+     */
+    @Synchronized
     fun setIdleTime(idleTime: Long) {
+        if (myIdleTime == idleTime) return
 
         LOG.info(MessageFormat.format("Agent will be automatically shutdown after {0} minutes of inactivity.", idleTime / 1000 / 60))
 
-        val r = object : Runnable {
-            override fun run() {
-                val actualIdle = myTracker.idleTime
-                if (actualIdle > idleTime) {
-                    LOG.warn("Agent was idle for " + actualIdle / 1000 / 60 + " minutes. Cloud profile timeout was " + idleTime / 1000 / 60 + " minutes. Instance will be shut down")
-                    shutdownInstance()
-                    return
-                }
-
-                //Check again
-                myService.schedule(this, 10 + idleTime - actualIdle, TimeUnit.MILLISECONDS)
-            }
+        myIdleTime = idleTime
+        myCheck?.cancel(false)
+        scheduleCheck(++myGeneration, idleTime, 0)
+    }
+
+    @Synchronized
+    private fun scheduleCheck(generation: Int, idleTime: Long, delay: Long) {
+        // Check could be scheduled by the previous idle time
+        if (generation != myGeneration || myService.isShutdown) return
+        myCheck = myService.schedule(Runnable { checkIdleTime(generation, idleTime) }, delay, TimeUnit.MILLISECONDS)
+    }
+
+    private fun checkIdleTime(generation: Int, idleTime: Long) {
+        val actualIdle = myTracker.idleTime
+        if (actualIdle > idleTime) {
+            LOG.warn("Agent was idle for " + actualIdle / 1000 / 60 + " minutes. Cloud profile timeout was " + idleTime / 1000 / 60 + " minutes. Instance will be shut down")
+            shutdownInstance()
+            return
         }
-        r.run()
+
+        //Check again
+        scheduleCheck(generation, idleTime, 10 + idleTime - actualIdle)
     }
 
     private fun shutdownInstance() {
@@ -0,0 +1,67 @@
+package jetbrains.buildServer.clouds.google
+
+import com.intellij.openapi.diagnostic.Logger
+import java.io.File
+import java.io.IOException
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * Keeps the last good instance metadata on the local disk.
+ *
+ * File is replaced atomically, so a crashed agent never leaves partially written metadata.
+ */
+class MetadataCache(private val file: File) {
+
+    /**
+     * Reads cached metadata.
+     *
+     * @return json or null if nothing is cached.
+     */
+    fun read(): String? {
+        if (!file.isFile) return null
+        return try {
+            file.readText(Charsets.UTF_8).takeIf { it.isNotBlank() }
+        } catch (e: IOException) {
+            LOG.warnAndDebugDetails("Failed to read cached instance metadata from $file", e)
+            null
+        }
+    }
+
+    /**
+     * Replaces cached metadata.
+     */
+    fun write(json: String) {
+        try {
+            val directory = file.absoluteFile.parentFile
+            Files.createDirectories(directory.toPath())
+            val tempFile = File.createTempFile(file.name, ".tmp", directory)
+            try {
+                tempFile.writeText(json, Charsets.UTF_8)
+                try {
+                    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+                } catch (e: AtomicMoveNotSupportedException) {
+                    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+                }
+            } finally {
+                tempFile.delete()
+            }
+        } catch (e: IOException) {
+            LOG.warnAndDebugDetails("Failed to cache instance metadata in $file", e)
+        }
+    }
+
+    /**
+     * Removes cached metadata.
+     */
+    fun clear() {
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Failed to remove cached instance metadata $file")
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(MetadataCache::class.java.name)
+    }
+}
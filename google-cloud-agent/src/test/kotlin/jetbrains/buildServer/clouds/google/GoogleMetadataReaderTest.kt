@@ -18,6 +18,8 @@ class GoogleMetadataReaderTest {
         Assert.assertEquals(metadata?.name, "agent1")
         Assert.assertNotNull(metadata?.attributes)
         Assert.assertEquals(metadata?.attributes?.teamcityData, "data")
+        Assert.assertEquals(metadata?.attributes?.teamcityProfile, "google")
+        Assert.assertEquals(metadata?.attributes?.teamcitySource, "agent")
         Assert.assertNotNull(metadata?.networkInterfaces)
         Assert.assertEquals(metadata?.networkInterfaces?.size, 1)
         val accessConfigs = metadata!!.networkInterfaces[0].accessConfigs
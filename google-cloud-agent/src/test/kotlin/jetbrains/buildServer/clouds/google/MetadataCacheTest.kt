@@ -0,0 +1,48 @@
+package jetbrains.buildServer.clouds.google
+
+import jetbrains.buildServer.util.FileUtil
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.io.File
+import java.nio.file.Files
+
+@Test
+class MetadataCacheTest {
+
+    private lateinit var myDirectory: File
+
+    @BeforeMethod
+    fun setUp() {
+        myDirectory = Files.createTempDirectory("metadata").toFile()
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        FileUtil.delete(myDirectory)
+    }
+
+    fun readMissingMetadata() {
+        val cache = MetadataCache(File(myDirectory, "google/metadata.json"))
+        Assert.assertNull(cache.read())
+    }
+
+    fun replaceMetadata() {
+        val json = FileUtil.readText(File("src/test/resources/metadata1.json"))
+        val cache = MetadataCache(File(myDirectory, "google/metadata.json"))
+
+        cache.write("{}")
+        cache.write(json)
+
+        Assert.assertEquals(cache.read(), json)
+        Assert.assertEquals(File(myDirectory, "google").list()?.toList(), listOf("metadata.json"))
+    }
+
+    fun clearMetadata() {
+        val cache = MetadataCache(File(myDirectory, "google/metadata.json"))
+        cache.write("{}")
+        cache.clear()
+        Assert.assertNull(cache.read())
+    }
+}
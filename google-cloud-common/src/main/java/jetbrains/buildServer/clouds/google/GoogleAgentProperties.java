@@ -4,4 +4,6 @@ package jetbrains.buildServer.clouds.google;
 
 public class GoogleAgentProperties {
     public static String INSTANCE_NAME = "google.instance.name";
+    public static String PROFILE_ID = "google.instance.profile";
+    public static String SOURCE_ID = "google.instance.source";
 }
\ No newline at end of file
@@ -4,11 +4,7 @@ package jetbrains.buildServer.clouds.base;
 
 import com.intellij.openapi.diagnostic.Logger;
 
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
 
 import jetbrains.buildServer.clouds.*;
 import jetbrains.buildServer.clouds.base.beans.CloudImageDetails;
@@ -18,8 +14,10 @@ import jetbrains.buildServer.clouds.base.errors.CloudErrorMap;
 import jetbrains.buildServer.clouds.base.errors.DefaultErrorMessageUpdater;
 import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo;
 import jetbrains.buildServer.clouds.base.errors.UpdatableCloudErrorProvider;
+import jetbrains.buildServer.clouds.base.tasks.AdaptivePollScheduler;
 import jetbrains.buildServer.clouds.base.tasks.UpdateInstancesTask;
 import jetbrains.buildServer.serverSide.AgentDescription;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -32,6 +30,12 @@ public abstract class AbstractCloudClient<G extends AbstractCloudInstance<T>, T
   implements CloudClientEx, UpdatableCloudErrorProvider {
 
   private static final Logger LOG = Logger.getInstance(AbstractCloudClient.class.getName());
+  private static final String POLL_FAST_DELAY_PROPERTY = "teamcity.cloud.google.poll.fastDelaySeconds";
+  private static final String POLL_MAX_DELAY_PROPERTY = "teamcity.cloud.google.poll.maxDelaySeconds";
+  private static final long DEFAULT_POLL_FAST_DELAY_SEC = 5;
+  private static final long DEFAULT_POLL_MAX_DELAY_SEC = 60;
+  private static final Set<InstanceStatus> TRANSITION_STATUSES = EnumSet.of(
+    InstanceStatus.SCHEDULED_TO_START, InstanceStatus.STARTING, InstanceStatus.STOPPING, InstanceStatus.SCHEDULED_TO_STOP);
   protected final Map<String, T> myImageMap;
   protected final UpdatableCloudErrorProvider myErrorProvider;
   protected final CloudAsyncTaskExecutor myAsyncTaskExecutor;
@@ -39,6 +43,7 @@ public abstract class AbstractCloudClient<G extends AbstractCloudInstance<T>, T
   protected final CloudApiConnector myApiConnector;
   protected final CloudClientParameters myParameters;
   private volatile boolean myIsInitialized = false;
+  private volatile AdaptivePollScheduler myPollScheduler;
 
   public AbstractCloudClient(@NotNull final CloudClientParameters params, @NotNull final CloudApiConnector apiConnector) {
     myParameters = params;
@@ -54,23 +59,43 @@ public abstract class AbstractCloudClient<G extends AbstractCloudInstance<T>, T
 
 
   public void dispose() {
+    final AdaptivePollScheduler scheduler = myPollScheduler;
+    if (scheduler != null) {
+      scheduler.stop();
+    }
     myAsyncTaskExecutor.dispose();
   }
 
   @NotNull
   public G startNewInstance(@NotNull final CloudImage baseImage, @NotNull final CloudInstanceUserData tag) throws QuotaException {
     final T image = (T) baseImage;
-    return image.startNewInstance(tag);
+    try {
+      return image.startNewInstance(tag);
+    } finally {
+      wakeUpPolling();
+    }
   }
 
   public void restartInstance(@NotNull final CloudInstance baseInstance) {
     final G instance = (G) baseInstance;
     instance.getImage().restartInstance(instance);
+    wakeUpPolling();
   }
 
   public void terminateInstance(@NotNull final CloudInstance baseInstance) {
     final G instance = (G) baseInstance;
     instance.getImage().terminateInstance(instance);
+    wakeUpPolling();
+  }
+
+  /**
+   * Makes the next instances update to happen soon, e.g. when an instance changes its state.
+   */
+  protected void wakeUpPolling() {
+    final AdaptivePollScheduler scheduler = myPollScheduler;
+    if (scheduler != null) {
+      scheduler.wakeUp();
+    }
   }
 
   public boolean canStartNewInstance(@NotNull final CloudImage baseImage) {
@@ -79,9 +104,16 @@ public abstract class AbstractCloudClient<G extends AbstractCloudInstance<T>, T
   }
 
   public void populateImagesData(@NotNull final Collection<D> imageDetails) {
-    populateImagesData(imageDetails, 60 * 1000, 60 * 1000);
+    final long maxDelayMs = TeamCityProperties.getLong(POLL_MAX_DELAY_PROPERTY, DEFAULT_POLL_MAX_DELAY_SEC) * 1000;
+    populateImagesData(imageDetails, maxDelayMs, maxDelayMs);
   }
 
+  /**
+   * Populates images and schedules instances update.
+   *
+   * @param initialDelayMs delay before the first scheduled update.
+   * @param delayMs maximum delay between updates when no instances are in transition.
+   */
   public void populateImagesData(@NotNull final Collection<D> imageDetails, final long initialDelayMs, final long delayMs) {
     for (D details : imageDetails) {
       T image = checkAndCreateImage(details);
@@ -93,17 +125,32 @@ public abstract class AbstractCloudClient<G extends AbstractCloudInstance<T>, T
     }
     myAsyncTaskExecutor.submit("Populate images data", new Runnable() {
       public void run() {
-        try {
-          updateInstancesTask.run();
-          myAsyncTaskExecutor.scheduleWithFixedDelay("Update instances", updateInstancesTask, initialDelayMs, delayMs, TimeUnit.MILLISECONDS);
-        } finally {
-          myIsInitialized = true;
-          LOG.info("Cloud profile '" + myParameters.getProfileDescription() + "' initialized");
-        }
+        updateInstancesTask.runAsync().whenComplete((ignored, error) -> {
+          try {
+            final long fastDelayMs = TeamCityProperties.getLong(POLL_FAST_DELAY_PROPERTY, DEFAULT_POLL_FAST_DELAY_SEC) * 1000;
+            myPollScheduler = new AdaptivePollScheduler(myAsyncTaskExecutor, "Update instances", updateInstancesTask::runAsync,
+              AbstractCloudClient.this::hasInstancesInTransition, fastDelayMs, delayMs);
+            myPollScheduler.start(hasInstancesInTransition() ? fastDelayMs : initialDelayMs);
+          } finally {
+            myIsInitialized = true;
+            LOG.info("Cloud profile '" + myParameters.getProfileDescription() + "' initialized");
+          }
+        });
       }
     });
   }
 
+  private boolean hasInstancesInTransition() {
+    for (T image : myImageMap.values()) {
+      for (G instance : image.getInstances()) {
+        if (TRANSITION_STATUSES.contains(instance.getStatus())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
   protected abstract T checkAndCreateImage(@NotNull final D imageDetails);
 
   @NotNull
@@ -32,6 +32,7 @@ public abstract class AbstractCloudImage<T extends AbstractCloudInstance, G exte
   private final String myName;
   private final String myId;
   private Instant myTimeoutExpiresAt;
+  private volatile boolean myInstancesDetected;
 
   protected AbstractCloudImage(String name, String id) {
     myName = name;
@@ -84,6 +85,17 @@ public abstract class AbstractCloudImage<T extends AbstractCloudInstance, G exte
     myInstances.put(instance.getInstanceId(), instance);
   }
 
+  /**
+   * Returns whether existing instances of the image were loaded, until then instance limits could not be checked.
+   */
+  public boolean isInstancesDetected() {
+    return myInstancesDetected;
+  }
+
+  public void markInstancesDetected() {
+    myInstancesDetected = true;
+  }
+
   public abstract boolean canStartNewInstance();
 
   public abstract void terminateInstance(@NotNull final T instance);
@@ -105,6 +117,7 @@ public abstract class AbstractCloudImage<T extends AbstractCloudInstance, G exte
         myInstances.put(instanceName, newInstance);
       }
     }
+    markInstancesDetected();
   }
 
   public String toString() {
@@ -0,0 +1,24 @@
+package jetbrains.buildServer.clouds.base.connector;
+
+import jetbrains.buildServer.clouds.base.AbstractCloudImage;
+import jetbrains.buildServer.clouds.base.AbstractCloudInstance;
+import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Cloud API connector which performs remote calls without blocking the calling thread.
+ *
+ * Returned futures are completed on the connector threads, so callers should not block in the callbacks.
+ */
+public interface AsyncCloudApiConnector<T extends AbstractCloudImage, G extends AbstractCloudInstance> extends CloudApiConnector<T, G> {
+
+  @NotNull
+  CompletableFuture<Map<T, TypedCloudErrorInfo[]>> checkImagesAsync(@NotNull final Collection<T> images);
+
+  @NotNull
+  <R extends AbstractInstance> CompletableFuture<Map<T, Map<String, R>>> fetchInstancesAsync(@NotNull final Collection<T> images);
+}
@@ -16,9 +16,9 @@ public interface AsyncCloudTask {
   /**
    * Consecutive execution of this method will makes no effect. Only first call of this method starts the executing.
    * All next calls just return the result's future
-   * @return result's future
+   * @return result's future, which is completed when the task is finished
    */
-  Future<CloudTaskResult> executeOrGetResultAsync();
+  CompletableFuture<CloudTaskResult> executeOrGetResultAsync();
 
   @NotNull
   String getName();
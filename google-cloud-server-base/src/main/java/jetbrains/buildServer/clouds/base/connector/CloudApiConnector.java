@@ -9,6 +9,7 @@ import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -29,6 +30,18 @@ public interface CloudApiConnector<T extends AbstractCloudImage, G extends Abstr
   @NotNull
   TypedCloudErrorInfo[] checkImage(@NotNull final T image);
 
+  /**
+   * Checks images within a single update cycle, implementations could share lookups between images.
+   */
+  @NotNull
+  default Map<T, TypedCloudErrorInfo[]> checkImages(@NotNull final Collection<T> images) {
+    final Map<T, TypedCloudErrorInfo[]> result = new HashMap<>();
+    for (T image : images) {
+      result.put(image, checkImage(image));
+    }
+    return result;
+  }
+
   @NotNull
   TypedCloudErrorInfo[] checkInstance(@NotNull final G instance);
 
@@ -3,14 +3,17 @@
 package jetbrains.buildServer.clouds.base.connector;
 
 import com.intellij.openapi.diagnostic.Logger;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.*;
 import jetbrains.buildServer.util.NamedThreadFactory;
 import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import org.jetbrains.annotations.NotNull;
 
 /**
+ * Executes cloud tasks and notifies callback handlers when tasks are completed.
+ *
+ * Handlers are invoked from the task completion, so nothing is polled while there are no tasks.
+ * A timer is scheduled per task only to report tasks which run longer than a minute.
+ *
  * @author Sergey.Pak
  *         Date: 7/29/2014
  *         Time: 3:51 PM
@@ -21,17 +24,15 @@ public class CloudAsyncTaskExecutor {
   private static final long LONG_TASK_TIME = 60*1000l;
 
   private final ScheduledExecutorService myExecutor;
-  private final ConcurrentMap<AsyncCloudTask, TaskCallbackHandler> myExecutingTasks;
-  private final Map<AsyncCloudTask, Long> myLongTasks = new HashMap<AsyncCloudTask, Long>();
+  private final ConcurrentMap<AsyncCloudTask, ScheduledFuture<?>> myExecutingTasks;
 
   public CloudAsyncTaskExecutor(String prefix) {
-    myExecutingTasks = new ConcurrentHashMap<AsyncCloudTask, TaskCallbackHandler>();
+    myExecutingTasks = new ConcurrentHashMap<AsyncCloudTask, ScheduledFuture<?>>();
     myExecutor = ExecutorsFactory.newFixedScheduledDaemonExecutor(prefix, 2);
-    scheduleWithFixedDelay("Check for tasks", new Runnable() {
-      public void run() {
-        checkTasks();
-      }
-    }, 0, 300, TimeUnit.MILLISECONDS);
+    if (myExecutor instanceof ScheduledThreadPoolExecutor) {
+      // long task timers are cancelled for most tasks, don't keep them in the queue
+      ((ScheduledThreadPoolExecutor)myExecutor).setRemoveOnCancelPolicy(true);
+    }
   }
 
   public void executeAsync(final AsyncCloudTask operation) {
@@ -39,8 +40,16 @@ public class CloudAsyncTaskExecutor {
   }
 
   public void executeAsync(final AsyncCloudTask operation, final TaskCallbackHandler callbackHandler) {
-    operation.executeOrGetResultAsync();
-    myExecutingTasks.put(operation, callbackHandler);
+    final CompletableFuture<CloudTaskResult> future = operation.executeOrGetResultAsync();
+    final long runningTime = System.currentTimeMillis() - operation.getStartTime();
+    final ScheduledFuture<?> longTaskReport = scheduleLongTaskReport(operation, Math.max(LONG_TASK_TIME - runningTime, 0));
+    if (myExecutingTasks.putIfAbsent(operation, longTaskReport) != null) {
+      longTaskReport.cancel(false);
+      LOG.debug("Task is already executing: " + operation);
+      return;
+    }
+
+    future.whenCompleteAsync((result, error) -> processCompletedTask(operation, callbackHandler, result, error), myExecutor);
   }
 
   public ScheduledFuture<?> scheduleWithFixedDelay(@NotNull final String taskName, @NotNull final Runnable task, final long initialDelay, final long delay, final TimeUnit unit){
@@ -51,6 +60,14 @@ public class CloudAsyncTaskExecutor {
     }, initialDelay, delay, unit);
   }
 
+  public ScheduledFuture<?> schedule(@NotNull final String taskName, @NotNull final Runnable task, final long delay, final TimeUnit unit){
+    return myExecutor.schedule(new Runnable() {
+      public void run() {
+        NamedThreadFactory.executeWithNewThreadName(taskName, task);
+      }
+    }, delay, unit);
+  }
+
   public Future<?> submit(final String taskName, final Runnable r){
     return myExecutor.submit(new Runnable() {
       public void run() {
@@ -64,49 +81,54 @@ public class CloudAsyncTaskExecutor {
     });
   }
 
-  private void checkTasks() {
-    for (AsyncCloudTask task : myExecutingTasks.keySet()) {
-      try {
-        processSingleTask(task);
-      } catch (Throwable th) {
-        LOG.warnAndDebugDetails("An error occurred during checking " + task, th);
-      }
-    }
-  }
-
-  private void processSingleTask(AsyncCloudTask task) {
-    final Future<CloudTaskResult> future = task.executeOrGetResultAsync();
-    if (future.isDone()) {
-      final TaskCallbackHandler handler = myExecutingTasks.get(task);
-      try {
-        final CloudTaskResult result = future.get();
+  private void processCompletedTask(@NotNull final AsyncCloudTask task,
+                                    @NotNull final TaskCallbackHandler handler,
+                                    final CloudTaskResult result,
+                                    final Throwable error) {
+    final ScheduledFuture<?> longTaskReport = myExecutingTasks.remove(task);
+    try {
+      if (error != null) {
+        final Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        LOG.warn(String.format("An error occurred while executing : '%s': %s", task.toString(), cause.toString()));
+        handler.onError(cause);
+      } else {
         handler.onComplete();
         if (result.isHasErrors()) {
           handler.onError(result.getThrowable());
         } else {
           handler.onSuccess();
         }
-      } catch (Exception e) {
-        LOG.warn(String.format("An error occurred while executing : '%s': %s", task.toString(), e.toString()));
-        handler.onError(e);
-      }
-      myExecutingTasks.remove(task);
-      if (myLongTasks.remove(task) != null) {
-        final long operationTime = System.currentTimeMillis() - task.getStartTime();
-        LOG.info(String.format("Long operation finished: '%s' took %d seconds to execute", task.toString(), operationTime / 1000));
-      }
-    } else {
-      final long operationTime = System.currentTimeMillis() - task.getStartTime();
-      if (operationTime > LONG_TASK_TIME) {
-        final Long lastTimeReported = myLongTasks.get(task);
-        if (lastTimeReported == null || (System.currentTimeMillis() - lastTimeReported) > LONG_TASK_TIME) {
-          LOG.info(String.format("Detected long running task:('%s', running for %d seconds)", task.toString(), operationTime / 1000));
-          myLongTasks.put(task, System.currentTimeMillis());
-        }
       }
+    } catch (Throwable th) {
+      LOG.warnAndDebugDetails("An error occurred during processing of " + task, th);
+    }
+
+    if (longTaskReport != null) {
+      longTaskReport.cancel(false);
+    }
+    final long operationTime = System.currentTimeMillis() - task.getStartTime();
+    if (operationTime > LONG_TASK_TIME) {
+      LOG.info(String.format("Long operation finished: '%s' took %d seconds to execute", task.toString(), operationTime / 1000));
     }
   }
 
+  private ScheduledFuture<?> scheduleLongTaskReport(@NotNull final AsyncCloudTask task, final long delay) {
+    return myExecutor.schedule(new Runnable() {
+      public void run() {
+        reportLongTask(task);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void reportLongTask(@NotNull final AsyncCloudTask task) {
+    if (!myExecutingTasks.containsKey(task)) return;
+
+    final long operationTime = System.currentTimeMillis() - task.getStartTime();
+    LOG.info(String.format("Detected long running task:('%s', running for %d seconds)", task.toString(), operationTime / 1000));
+    // the task could be completed in between, then the next report is dropped
+    myExecutingTasks.replace(task, scheduleLongTaskReport(task, LONG_TASK_TIME));
+  }
+
   public void dispose(){
     myExecutor.shutdown();
     try {
@@ -115,4 +137,4 @@ public class CloudAsyncTaskExecutor {
     myExecutingTasks.clear();
   }
 
-}
\ No newline at end of file
+}
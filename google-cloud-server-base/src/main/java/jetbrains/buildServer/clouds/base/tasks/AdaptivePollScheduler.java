@@ -0,0 +1,143 @@
+package jetbrains.buildServer.clouds.base.tasks;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import jetbrains.buildServer.clouds.base.connector.CloudAsyncTaskExecutor;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Schedules a polling task with adaptive delay.
+ *
+ * While instances are in transition the task runs with a short delay, otherwise
+ * the delay is doubled after each run up to the maximum one. All delays are jittered
+ * to avoid polling of all profiles at the same time. An asynchronous task is not run again
+ * until its future is completed.
+ */
+public class AdaptivePollScheduler {
+  private static final Logger LOG = Logger.getInstance(AdaptivePollScheduler.class.getName());
+  private static final double JITTER = 0.1;
+
+  private final CloudAsyncTaskExecutor myExecutor;
+  private final String myTaskName;
+  private final Supplier<CompletableFuture<?>> myTask;
+  private final BooleanSupplier myInTransition;
+  private final long myFastDelayMs;
+  private final long myMaxDelayMs;
+
+  private final Object myLock = new Object();
+  private ScheduledFuture<?> myScheduledRun;
+  private long myScheduledTime;
+  private long myDelayMs;
+  private boolean myRunning;
+  private boolean myStopped;
+
+  public AdaptivePollScheduler(@NotNull final CloudAsyncTaskExecutor executor,
+                               @NotNull final String taskName,
+                               @NotNull final Supplier<CompletableFuture<?>> task,
+                               @NotNull final BooleanSupplier inTransition,
+                               final long fastDelayMs,
+                               final long maxDelayMs) {
+    myExecutor = executor;
+    myTaskName = taskName;
+    myTask = task;
+    myInTransition = inTransition;
+    myFastDelayMs = fastDelayMs;
+    myMaxDelayMs = Math.max(fastDelayMs, maxDelayMs);
+    myDelayMs = myFastDelayMs;
+  }
+
+  public void start(final long initialDelayMs) {
+    synchronized (myLock) {
+      schedule(jitter(initialDelayMs));
+    }
+  }
+
+  /**
+   * Requests the next run after the short delay, e.g. when an instance was started or stopped.
+   */
+  public void wakeUp() {
+    synchronized (myLock) {
+      myDelayMs = myFastDelayMs;
+      if (myStopped || myRunning) {
+        // the next delay is computed after the current run
+        return;
+      }
+      if (myScheduledRun != null && myScheduledTime - System.currentTimeMillis() > myFastDelayMs) {
+        if (myScheduledRun.cancel(false)) {
+          schedule(jitter(myFastDelayMs));
+        }
+      }
+    }
+  }
+
+  public void stop() {
+    synchronized (myLock) {
+      myStopped = true;
+      if (myScheduledRun != null) {
+        myScheduledRun.cancel(false);
+      }
+    }
+  }
+
+  private void run() {
+    synchronized (myLock) {
+      if (myStopped || myRunning) return;
+      myRunning = true;
+    }
+
+    CompletableFuture<?> result;
+    try {
+      result = myTask.get();
+    } catch (Throwable e) {
+      LOG.warnAndDebugDetails("Failed to run " + myTaskName, e);
+      result = CompletableFuture.completedFuture(null);
+    }
+
+    result.whenComplete((ignored, error) -> {
+      synchronized (myLock) {
+        myRunning = false;
+        if (!myStopped) {
+          schedule(jitter(nextDelay()));
+        }
+      }
+    });
+  }
+
+  private long nextDelay() {
+    boolean inTransition;
+    try {
+      inTransition = myInTransition.getAsBoolean();
+    } catch (Exception e) {
+      LOG.debug("Failed to check instances state: " + e);
+      inTransition = false;
+    }
+
+    if (inTransition) {
+      myDelayMs = myFastDelayMs;
+    } else {
+      final long delay = myDelayMs;
+      myDelayMs = Math.min(myDelayMs * 2, myMaxDelayMs);
+      return delay;
+    }
+
+    return myDelayMs;
+  }
+
+  private void schedule(final long delayMs) {
+    myScheduledTime = System.currentTimeMillis() + delayMs;
+    myScheduledRun = myExecutor.schedule(myTaskName, this::run, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  private static long jitter(final long delayMs) {
+    final long bound = (long)(delayMs * JITTER);
+    if (bound <= 0) return delayMs;
+    return delayMs + ThreadLocalRandom.current().nextLong(-bound, bound + 1);
+  }
+}
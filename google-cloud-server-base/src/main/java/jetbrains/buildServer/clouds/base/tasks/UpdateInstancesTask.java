@@ -6,6 +6,8 @@ import com.intellij.openapi.diagnostic.Logger;
 
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import jetbrains.buildServer.Used;
 import jetbrains.buildServer.clouds.InstanceStatus;
@@ -13,6 +15,7 @@ import jetbrains.buildServer.clouds.base.AbstractCloudClient;
 import jetbrains.buildServer.clouds.base.AbstractCloudImage;
 import jetbrains.buildServer.clouds.base.AbstractCloudInstance;
 import jetbrains.buildServer.clouds.base.connector.AbstractInstance;
+import jetbrains.buildServer.clouds.base.connector.AsyncCloudApiConnector;
 import jetbrains.buildServer.clouds.base.connector.CloudApiConnector;
 import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo;
 import jetbrains.buildServer.util.StringUtil;
@@ -63,98 +66,155 @@ public class UpdateInstancesTask<G extends AbstractCloudInstance<T>,
   public void run() {
     final Map<InstanceStatus, List<String>> instancesByStatus = new HashMap<>();
     try {
-      List<T> goodImages = new ArrayList<>();
       final Collection<T> images = getImages();
-      for (final T image : images) {
-        image.updateErrors(myConnector.checkImage(image));
-        if (image.getErrorInfo() != null) {
-          if (!image.isTimedOut()) {
-            image.updateErrors((TypedCloudErrorInfo[]) null);
-          }
-          continue;
+      final List<T> goodImages = selectGoodImages(images, myConnector.checkImages(images));
+      final Map<T, Map<String, AbstractInstance>> groupedInstances = myConnector.fetchInstances(goodImages);
+      updateInstances(goodImages, groupedInstances, instancesByStatus);
+    } catch (Exception ex) {
+      handleError(ex);
+    } finally {
+      logInstances(instancesByStatus);
+    }
+  }
+
+  /**
+   * Runs the update without blocking the calling thread when the connector supports asynchronous calls.
+   *
+   * @return future which is completed when the update is finished.
+   */
+  @NotNull
+  public CompletableFuture<Void> runAsync() {
+    if (!(myConnector instanceof AsyncCloudApiConnector)) {
+      run();
+      return CompletableFuture.completedFuture(null);
+    }
+
+    final AsyncCloudApiConnector<T, G> connector = (AsyncCloudApiConnector<T, G>)myConnector;
+    final Map<InstanceStatus, List<String>> instancesByStatus = new HashMap<>();
+    CompletableFuture<Void> update;
+    try {
+      final Collection<T> images = getImages();
+      update = connector.checkImagesAsync(images).thenCompose(imageErrors -> {
+        final List<T> goodImages = selectGoodImages(images, imageErrors);
+        return connector.<AbstractInstance>fetchInstancesAsync(goodImages)
+          .thenAccept(groupedInstances -> updateInstances(goodImages, groupedInstances, instancesByStatus));
+      });
+    } catch (Exception ex) {
+      update = new CompletableFuture<>();
+      update.completeExceptionally(ex);
+    }
+
+    return update.handle((ignored, error) -> {
+      try {
+        if (error != null) {
+          handleError(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
         }
-        goodImages.add(image);
+      } finally {
+        logInstances(instancesByStatus);
       }
+      return null;
+    });
+  }
 
-      final Map<T, Map<String, AbstractInstance>> groupedInstances = myConnector.fetchInstances(goodImages);
-      for (Map.Entry<T, Map<String, AbstractInstance>> entry : groupedInstances.entrySet()) {
-        LOG.debug(String.format("Instances for [%s]:[%s]", entry.getKey().getId(), StringUtil.join(",", entry.getValue().keySet())));
+  @NotNull
+  private List<T> selectGoodImages(@NotNull final Collection<T> images, @NotNull final Map<T, TypedCloudErrorInfo[]> imageErrors) {
+    final List<T> goodImages = new ArrayList<>();
+    for (final T image : images) {
+      image.updateErrors(imageErrors.get(image));
+      if (image.getErrorInfo() != null) {
+        if (!image.isTimedOut()) {
+          image.updateErrors((TypedCloudErrorInfo[]) null);
+        }
+        continue;
+      }
+      goodImages.add(image);
+    }
+    return goodImages;
+  }
+
+  private void updateInstances(@NotNull final List<T> goodImages,
+                               @NotNull final Map<T, Map<String, AbstractInstance>> groupedInstances,
+                               @NotNull final Map<InstanceStatus, List<String>> instancesByStatus) {
+    for (Map.Entry<T, Map<String, AbstractInstance>> entry : groupedInstances.entrySet()) {
+      LOG.debug(String.format("Instances for [%s]:[%s]", entry.getKey().getId(), StringUtil.join(",", entry.getValue().keySet())));
+    }
+
+    for (T image : goodImages) {
+      Map<String, AbstractInstance> realInstances = groupedInstances.get(image);
+      if (realInstances == null) {
+        realInstances = Collections.emptyMap();
       }
+      for (String realInstanceName : realInstances.keySet()) {
+        final G instance = image.findInstanceById(realInstanceName);
+        final AbstractInstance realInstance = realInstances.get(realInstanceName);
+        if (instance == null) {
+          continue;
+        }
+        final InstanceStatus realInstanceStatus = realInstance.getInstanceStatus();
+        if (!instancesByStatus.containsKey(realInstanceStatus)) {
+          instancesByStatus.put(realInstanceStatus, new ArrayList<>());
+        }
+        instancesByStatus.get(realInstanceStatus).add(realInstanceName);
 
-      for (T image : goodImages) {
-        Map<String, AbstractInstance> realInstances = groupedInstances.get(image);
-        if (realInstances == null) {
-          realInstances = Collections.emptyMap();
+        if ((isStatusPermanent(instance.getStatus()) || isStuck(instance))
+          && isStatusPermanent(realInstanceStatus)
+          && realInstanceStatus != instance.getStatus()) {
+          LOG.info(String.format("Updated instance '%s' status to %s based on API information", realInstanceName, realInstanceStatus));
+          instance.setStatus(realInstanceStatus);
         }
-        for (String realInstanceName : realInstances.keySet()) {
-          final G instance = image.findInstanceById(realInstanceName);
-          final AbstractInstance realInstance = realInstances.get(realInstanceName);
+      }
+
+      final Collection<G> instances = image.getInstances();
+      List<TypedCloudErrorInfo[]> instanceInsertionErrs = new ArrayList<>(instances.size());
+      for (final G cloudInstance : instances) {
+        try {
+          final String instanceName = cloudInstance.getName();
+          final AbstractInstance instance = realInstances.get(instanceName);
           if (instance == null) {
+            if (cloudInstance.getStatus() != InstanceStatus.SCHEDULED_TO_START && cloudInstance.getStatus() != InstanceStatus.STARTING) {
+              instanceInsertionErrs.add(myConnector.checkStartOperation(cloudInstance));
+              image.removeInstance(cloudInstance.getInstanceId());
+            }
             continue;
           }
-          final InstanceStatus realInstanceStatus = realInstance.getInstanceStatus();
-          if (!instancesByStatus.containsKey(realInstanceStatus)) {
-            instancesByStatus.put(realInstanceStatus, new ArrayList<>());
-          }
-          instancesByStatus.get(realInstanceStatus).add(realInstanceName);
 
-          if ((isStatusPermanent(instance.getStatus()) || isStuck(instance))
-            && isStatusPermanent(realInstanceStatus)
-            && realInstanceStatus != instance.getStatus()) {
-            LOG.info(String.format("Updated instance '%s' status to %s based on API information", realInstanceName, realInstanceStatus));
-            instance.setStatus(realInstanceStatus);
+          cloudInstance.updateErrors(myConnector.checkInstance(cloudInstance));
+          if (instance.getStartDate() != null) {
+            cloudInstance.setStartDate(instance.getStartDate());
           }
+          if (instance.getIpAddress() != null) {
+            cloudInstance.setNetworkIdentify(instance.getIpAddress());
+          }
+        } catch (Exception ex) {
+          LOG.debug("Error processing VM " + cloudInstance.getName() + ": " + ex);
         }
+      }
 
-        final Collection<G> instances = image.getInstances();
-        List<TypedCloudErrorInfo[]> instanceInsertionErrs = new ArrayList<>(instances.size());
-        for (final G cloudInstance : instances) {
-          try {
-            final String instanceName = cloudInstance.getName();
-            final AbstractInstance instance = realInstances.get(instanceName);
-            if (instance == null) {
-              if (cloudInstance.getStatus() != InstanceStatus.SCHEDULED_TO_START && cloudInstance.getStatus() != InstanceStatus.STARTING) {
-                instanceInsertionErrs.add(myConnector.checkStartOperation(cloudInstance));
-                image.removeInstance(cloudInstance.getInstanceId());
-              }
-              continue;
-            }
+      TypedCloudErrorInfo[] encounteredErrors = instanceInsertionErrs.stream()
+              .flatMap(Arrays::stream)
+              .toArray(TypedCloudErrorInfo[]::new);
 
-            cloudInstance.updateErrors(myConnector.checkInstance(cloudInstance));
-            if (instance.getStartDate() != null) {
-              cloudInstance.setStartDate(instance.getStartDate());
-            }
-            if (instance.getIpAddress() != null) {
-              cloudInstance.setNetworkIdentify(instance.getIpAddress());
-            }
-          } catch (Exception ex) {
-            LOG.debug("Error processing VM " + cloudInstance.getName() + ": " + ex);
-          }
-        }
+      if (encounteredErrors.length != 0) {
+        image.timeout(TIMEOUT);
+        image.updateErrors(encounteredErrors);
+      }
 
-        TypedCloudErrorInfo[] encounteredErrors = instanceInsertionErrs.stream()
-                .flatMap(Arrays::stream)
-                .toArray(TypedCloudErrorInfo[]::new);
+      image.detectNewInstances(realInstances);
+    }
+    updateClientErrors();
+  }
 
-        if (encounteredErrors.length != 0) {
-          image.timeout(TIMEOUT);
-          image.updateErrors(encounteredErrors);
-        }
+  private void handleError(@NotNull final Throwable ex) {
+    if (myRethrowException) {
+      // for tests
+      throw new RuntimeException(ex);
+    }
+    LOG.warn(ex.toString(), ex);
+  }
 
-        image.detectNewInstances(realInstances);
-      }
-      myClient.updateErrors();
-    } catch (Exception ex) {
-      if (myRethrowException) {
-        // for tests
-        throw new RuntimeException(ex);
-      }
-      LOG.warn(ex.toString(), ex);
-    } finally {
-      //logging here:
-      for (InstanceStatus instanceStatus : instancesByStatus.keySet()) {
-        LOG.debug(String.format("Instances in '%s' status: %s", instanceStatus.getText(), Arrays.toString(instancesByStatus.get(instanceStatus).toArray())));
-      }
+  private static void logInstances(@NotNull final Map<InstanceStatus, List<String>> instancesByStatus) {
+    for (InstanceStatus instanceStatus : instancesByStatus.keySet()) {
+      LOG.debug(String.format("Instances in '%s' status: %s", instanceStatus.getText(), Arrays.toString(instancesByStatus.get(instanceStatus).toArray())));
     }
   }
 
@@ -163,6 +223,10 @@ public class UpdateInstancesTask<G extends AbstractCloudInstance<T>,
     return myClient.getImages();
   }
 
+  protected void updateClientErrors() {
+    myClient.updateErrors();
+  }
+
   private static boolean isStatusPermanent(InstanceStatus status) {
     return status == InstanceStatus.STOPPED || status == InstanceStatus.RUNNING;
   }
@@ -9,6 +9,7 @@ import jetbrains.buildServer.clouds.base.AbstractCloudImage;
 import jetbrains.buildServer.clouds.base.AbstractCloudInstance;
 import jetbrains.buildServer.clouds.base.beans.CloudImageDetails;
 import jetbrains.buildServer.clouds.base.connector.AbstractInstance;
+import jetbrains.buildServer.clouds.base.connector.AsyncCloudApiConnector;
 import jetbrains.buildServer.clouds.base.connector.CloudApiConnector;
 import jetbrains.buildServer.clouds.base.errors.CheckedCloudException;
 import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo;
@@ -19,7 +20,9 @@ import jetbrains.buildServer.version.ServerVersionHolder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.CompletionException;
 
 /**
  * Google cloud client base.
@@ -96,14 +99,24 @@ public abstract class GoogleCloudClientBase<G extends AbstractCloudInstance<T>,
       for (G instance : image.getInstances()) {
         cloudImage.addInstance(instance);
       }
+      cloudImage.markInstancesDetected();
+    } else if (myApiConnector instanceof AsyncCloudApiConnector) {
+      // New instances are not started until existing ones are detected, see AbstractCloudImage.isInstancesDetected
+      final AsyncCloudApiConnector<T, G> connector = (AsyncCloudApiConnector<T, G>)myApiConnector;
+      connector.<AbstractInstance>fetchInstancesAsync(Collections.singletonList(cloudImage)).whenComplete((instances, error) -> {
+        if (error != null) {
+          onFetchInstancesError(cloudImage, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+        } else {
+          final Map<String, AbstractInstance> realInstances = instances.get(cloudImage);
+          cloudImage.detectNewInstances(realInstances != null ? realInstances : Collections.emptyMap());
+        }
+      });
     } else {
       try {
         final Map<String, AbstractInstance> realInstances = myApiConnector.fetchInstances(cloudImage);
         cloudImage.detectNewInstances(realInstances);
       } catch (CheckedCloudException e) {
-        final String message = String.format("Failed to get instances for image %s: %s", sourceId, e.getMessage());
-        LOG.warnAndDebugDetails(message, e);
-        cloudImage.updateErrors(TypedCloudErrorInfo.fromException(e));
+        onFetchInstancesError(cloudImage, e);
       }
     }
 
@@ -112,5 +125,11 @@ public abstract class GoogleCloudClientBase<G extends AbstractCloudInstance<T>,
     return cloudImage;
   }
 
+  private void onFetchInstancesError(@NotNull final T image, @NotNull final Throwable e) {
+    final String message = String.format("Failed to get instances for image %s: %s", image.getId(), e.getMessage());
+    LOG.warnAndDebugDetails(message, e);
+    image.updateErrors(TypedCloudErrorInfo.fromException(e));
+  }
+
   protected abstract T createImage(@NotNull D imageDetails);
 }
\ No newline at end of file
@@ -6,27 +6,37 @@ import jetbrains.buildServer.clouds.base.AbstractCloudImage;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Stores info about cloud images and instances
  */
 public class GoogleCloudImagesHolder {
-  private final Map<String, AbstractCloudImage> myImages = new ConcurrentHashMap<>();
+  private final Map<String, Map<String, AbstractCloudImage>> myImages = new ConcurrentHashMap<>();
 
   @Nullable
   public AbstractCloudImage findImage(@NotNull final String profileId, @NotNull final String sourceId) {
-    final String key = getKey(profileId, sourceId);
-    return myImages.get(key);
+    final Map<String, AbstractCloudImage> images = myImages.get(profileId);
+    return images != null ? images.get(sourceId) : null;
   }
 
   public void addImage(@NotNull String profileId, @NotNull AbstractCloudImage image) {
-    final String key = getKey(profileId, image.getId());
-    myImages.put(key, image);
+    myImages.computeIfAbsent(profileId, id -> new ConcurrentHashMap<>()).put(image.getId(), image);
   }
 
-  private static String getKey(@NotNull String profileId, @NotNull String sourceId) {
-    return String.format("%s-%s", profileId, sourceId);
+  @NotNull
+  public Collection<AbstractCloudImage> getImages(@NotNull final String profileId) {
+    final Map<String, AbstractCloudImage> images = myImages.get(profileId);
+    return images != null ? Collections.unmodifiableCollection(images.values()) : Collections.emptyList();
   }
-}
\ No newline at end of file
+
+  @NotNull
+  public Collection<AbstractCloudImage> getImages() {
+    final List<AbstractCloudImage> images = new ArrayList<>();
+    for (Map<String, AbstractCloudImage> profileImages : myImages.values()) {
+      images.addAll(profileImages.values());
+    }
+    return images;
+  }
+}
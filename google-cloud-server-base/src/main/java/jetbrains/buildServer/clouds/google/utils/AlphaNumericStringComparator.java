@@ -3,20 +3,25 @@
 package jetbrains.buildServer.clouds.google.utils;
 
 import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
 import java.util.Comparator;
 
+import java.util.List;
 import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import org.jetbrains.annotations.NotNull;
 
 /**
  * Compares Strings by human values instead of traditional machine values.
  *
+ * Strings are split into chunks of digits, decimal numbers and other characters. Number chunks
+ * are compared by value and other chunks lexicographically. When a lot of strings are sorted,
+ * use {@link #getCollationKey(String)} to split every string only once.
+ *
  * @author elberry
  */
 public class AlphaNumericStringComparator implements Comparator<String> {
 
-    private Pattern alphaNumChunkPattern;
+    private final char decimalSeparator;
 
     public AlphaNumericStringComparator() {
         this(Locale.getDefault());
@@ -24,38 +29,106 @@ public class AlphaNumericStringComparator implements Comparator<String> {
 
     public AlphaNumericStringComparator(Locale locale) {
         DecimalFormatSymbols dfs = new DecimalFormatSymbols(locale);
-        char localeDecimalSeparator = dfs.getDecimalSeparator();
-        // alphaNumChunkPatter initialized here to get correct decimal separator for locale.
-        alphaNumChunkPattern = Pattern.compile("(\\d+\\" + localeDecimalSeparator + "\\d+)|(\\d+)|(\\D+)");
+        decimalSeparator = dfs.getDecimalSeparator();
     }
 
     public int compare(String s1, String s2) {
-        int compareValue = 0;
-        Matcher s1ChunkMatcher = alphaNumChunkPattern.matcher(s1);
-        Matcher s2ChunkMatcher = alphaNumChunkPattern.matcher(s2);
-        String s1ChunkValue = null;
-        String s2ChunkValue = null;
-        while (s1ChunkMatcher.find() && s2ChunkMatcher.find() && compareValue == 0) {
-            s1ChunkValue = s1ChunkMatcher.group();
-            s2ChunkValue = s2ChunkMatcher.group();
-            try {
-                // compare double values - ints get converted to doubles. Eg. 100 = 100.0
-                Double s1Double = Double.valueOf(s1ChunkValue);
-                Double s2Double = Double.valueOf(s2ChunkValue);
-                compareValue = s1Double.compareTo(s2Double);
-            } catch (NumberFormatException e) {
-                // not a number, use string comparison.
-                compareValue = s1ChunkValue.compareTo(s2ChunkValue);
+        return getCollationKey(s1).compareTo(getCollationKey(s2));
+    }
+
+    /**
+     * Splits the string into chunks which could be compared with chunks of other strings.
+     *
+     * @param source string.
+     * @return collation key.
+     */
+    @NotNull
+    public CollationKey getCollationKey(@NotNull String source) {
+        List<String> chunks = new ArrayList<>();
+        List<Double> values = new ArrayList<>();
+        int length = source.length();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            if (isDigit(source.charAt(start))) {
+                end = skipDigits(source, start);
+                boolean decimal = false;
+                if (end + 1 < length && source.charAt(end) == decimalSeparator && isDigit(source.charAt(end + 1))) {
+                    end = skipDigits(source, end + 1);
+                    decimal = true;
+                }
+                String chunk = source.substring(start, end);
+                chunks.add(chunk);
+                if (decimal && decimalSeparator != '.') {
+                    // Only a dot is accepted by Double.parseDouble, decimals of other locales are compared as text
+                    values.add(null);
+                } else {
+                    values.add(Double.parseDouble(chunk));
+                }
+            } else {
+                while (end < length && !isDigit(source.charAt(end))) end++;
+                chunks.add(source.substring(start, end));
+                values.add(null);
             }
-            // if they are equal thus far, but one has more left, it should come after the one that doesn't.
-            if (compareValue == 0) {
-                if (s1ChunkMatcher.hitEnd() && !s2ChunkMatcher.hitEnd()) {
-                    compareValue = -1;
-                } else if (!s1ChunkMatcher.hitEnd() && s2ChunkMatcher.hitEnd()) {
-                    compareValue = 1;
+            start = end;
+        }
+
+        double[] numbers = new double[values.size()];
+        boolean[] numeric = new boolean[values.size()];
+        for (int i = 0; i < numbers.length; i++) {
+            Double value = values.get(i);
+            if (value != null) {
+                numbers[i] = value;
+                numeric[i] = true;
+            }
+        }
+
+        return new CollationKey(source, chunks.toArray(new String[0]), numbers, numeric);
+    }
+
+    private static int skipDigits(String source, int start) {
+        int end = start;
+        while (end < source.length() && isDigit(source.charAt(end))) end++;
+        return end;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Precomputed chunks of a string.
+     */
+    public static final class CollationKey implements Comparable<CollationKey> {
+        private final String mySource;
+        private final String[] myChunks;
+        private final double[] myNumbers;
+        private final boolean[] myNumeric;
+
+        private CollationKey(String source, String[] chunks, double[] numbers, boolean[] numeric) {
+            mySource = source;
+            myChunks = chunks;
+            myNumbers = numbers;
+            myNumeric = numeric;
+        }
+
+        @NotNull
+        public String getSource() {
+            return mySource;
+        }
+
+        public int compareTo(@NotNull CollationKey other) {
+            int count = Math.min(myChunks.length, other.myChunks.length);
+            for (int i = 0; i < count; i++) {
+                int compareValue = myNumeric[i] && other.myNumeric[i]
+                        ? Double.compare(myNumbers[i], other.myNumbers[i])
+                        : myChunks[i].compareTo(other.myChunks[i]);
+                if (compareValue != 0) {
+                    return compareValue;
                 }
             }
+            // if they are equal thus far, but one has more left, it should come after the one that doesn't.
+            return Integer.compare(myChunks.length, other.myChunks.length);
         }
-        return compareValue;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,59 @@
+package jetbrains.buildServer.clouds.base;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.clouds.base.connector.AbstractInstance;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Image which tracks instances reported by the cloud and registers started ones locally.
+ */
+public class FakeCloudImage extends AbstractCloudImage<FakeCloudInstance, FakeImageDetails> {
+
+  private final FakeImageDetails myImageDetails;
+  private final AtomicInteger myCounter = new AtomicInteger();
+
+  public FakeCloudImage(@NotNull final FakeImageDetails imageDetails) {
+    super(imageDetails.getSourceId(), imageDetails.getSourceId());
+    myImageDetails = imageDetails;
+  }
+
+  @Override
+  public boolean canStartNewInstance() {
+    return isInstancesDetected();
+  }
+
+  @Override
+  public void terminateInstance(@NotNull final FakeCloudInstance instance) {
+  }
+
+  @Override
+  public void restartInstance(@NotNull final FakeCloudInstance instance) {
+  }
+
+  @Override
+  public FakeCloudInstance startNewInstance(@NotNull final CloudInstanceUserData tag) {
+    final FakeCloudInstance instance = new FakeCloudInstance(this, getName() + "-started-" + myCounter.incrementAndGet());
+    instance.setStatus(InstanceStatus.SCHEDULED_TO_START);
+    addInstance(instance);
+    return instance;
+  }
+
+  @Override
+  public FakeImageDetails getImageDetails() {
+    return myImageDetails;
+  }
+
+  @Override
+  protected FakeCloudInstance createInstanceFromReal(final AbstractInstance realInstance) {
+    return new FakeCloudInstance(this, realInstance.getName());
+  }
+
+  @Nullable
+  @Override
+  public Integer getAgentPoolId() {
+    return null;
+  }
+}
@@ -0,0 +1,15 @@
+package jetbrains.buildServer.clouds.base;
+
+import jetbrains.buildServer.serverSide.AgentDescription;
+import org.jetbrains.annotations.NotNull;
+
+public class FakeCloudInstance extends AbstractCloudInstance<FakeCloudImage> {
+
+  public FakeCloudInstance(@NotNull final FakeCloudImage image, @NotNull final String name) {
+    super(image, name, name);
+  }
+
+  public boolean containsAgent(@NotNull final AgentDescription agent) {
+    return false;
+  }
+}
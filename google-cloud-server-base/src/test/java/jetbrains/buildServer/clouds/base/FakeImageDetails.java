@@ -0,0 +1,27 @@
+package jetbrains.buildServer.clouds.base;
+
+import jetbrains.buildServer.clouds.base.beans.CloudImageDetails;
+import jetbrains.buildServer.clouds.base.types.CloneBehaviour;
+
+public class FakeImageDetails implements CloudImageDetails {
+
+  private final String mySourceId;
+  private final int myMaxInstances;
+
+  public FakeImageDetails(final String sourceId, final int maxInstances) {
+    mySourceId = sourceId;
+    myMaxInstances = maxInstances;
+  }
+
+  public CloneBehaviour getBehaviour() {
+    return CloneBehaviour.FRESH_CLONE;
+  }
+
+  public int getMaxInstances() {
+    return myMaxInstances;
+  }
+
+  public String getSourceId() {
+    return mySourceId;
+  }
+}
@@ -2,7 +2,10 @@
 
 package jetbrains.buildServer.clouds.base;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import jetbrains.buildServer.clouds.base.connector.AbstractInstance;
 
 /**
@@ -13,12 +16,37 @@ import jetbrains.buildServer.clouds.base.connector.AbstractInstance;
 public class FakeModel {
   private static final FakeModel instance = new FakeModel();
 
+  private final Map<String, Map<String, AbstractInstance>> myInstances = new ConcurrentHashMap<>();
+
   public static FakeModel instance(){
     return instance;
   }
 
   public Map<String, AbstractInstance> getInstances(){
-    return null;
+    final Map<String, AbstractInstance> result = new HashMap<>();
+    for (Map<String, AbstractInstance> instances : myInstances.values()) {
+      result.putAll(instances);
+    }
+    return result;
+  }
+
+  public Map<String, AbstractInstance> getInstances(final String imageId){
+    final Map<String, AbstractInstance> instances = myInstances.get(imageId);
+    return instances == null ? Collections.<String, AbstractInstance>emptyMap() : instances;
+  }
+
+  public void addInstance(final String imageId, final AbstractInstance instance){
+    myInstances.computeIfAbsent(imageId, id -> new ConcurrentHashMap<>()).put(instance.getName(), instance);
+  }
+
+  public void removeInstance(final String imageId, final String name){
+    final Map<String, AbstractInstance> instances = myInstances.get(imageId);
+    if (instances != null) {
+      instances.remove(name);
+    }
   }
 
-}
\ No newline at end of file
+  public void clear(){
+    myInstances.clear();
+  }
+}
@@ -0,0 +1,85 @@
+package jetbrains.buildServer.clouds.base.connector;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class CloudAsyncTaskExecutorTest {
+
+  private CloudAsyncTaskExecutor myExecutor;
+
+  @BeforeMethod
+  public void setUp() {
+    myExecutor = new CloudAsyncTaskExecutor("Test");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myExecutor.dispose();
+  }
+
+  public void should_notify_handler_on_completion() throws Exception {
+    final FakeTask task = new FakeTask();
+    final CountDownLatch latch = new CountDownLatch(2);
+    myExecutor.executeAsync(task, new TaskCallbackHandler() {
+      @Override
+      public void onComplete() {
+        latch.countDown();
+      }
+
+      @Override
+      public void onSuccess() {
+        latch.countDown();
+      }
+    });
+
+    task.myFuture.complete(new CloudTaskResult());
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+  }
+
+  public void should_notify_handler_on_failure() throws Exception {
+    final FakeTask task = new FakeTask();
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    myExecutor.executeAsync(task, new TaskCallbackHandler() {
+      @Override
+      public void onError(final Throwable e) {
+        error.set(e);
+        latch.countDown();
+      }
+    });
+
+    final RuntimeException exception = new RuntimeException("failed");
+    task.myFuture.completeExceptionally(exception);
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertEquals(error.get(), exception);
+  }
+
+  private static class FakeTask implements AsyncCloudTask {
+    private final CompletableFuture<CloudTaskResult> myFuture = new CompletableFuture<CloudTaskResult>();
+    private final long myStartTime = System.currentTimeMillis();
+
+    public CompletableFuture<CloudTaskResult> executeOrGetResultAsync() {
+      return myFuture;
+    }
+
+    @NotNull
+    public String getName() {
+      return "Fake task";
+    }
+
+    public long getStartTime() {
+      return myStartTime;
+    }
+  }
+}
@@ -4,11 +4,13 @@ package jetbrains.buildServer.clouds.base.connector;
 
 import jetbrains.buildServer.clouds.base.AbstractCloudImage;
 import jetbrains.buildServer.clouds.base.AbstractCloudInstance;
+import jetbrains.buildServer.clouds.base.FakeModel;
 import jetbrains.buildServer.clouds.base.errors.CheckedCloudException;
 import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -18,6 +20,16 @@ import java.util.Map;
  */
 public class FakeApiConnector implements CloudApiConnector {
 
+  private final FakeModel myModel;
+
+  public FakeApiConnector() {
+    this(FakeModel.instance());
+  }
+
+  public FakeApiConnector(@NotNull final FakeModel model) {
+    myModel = model;
+  }
+
   @Override
   public void test() throws CheckedCloudException {
   }
@@ -43,12 +55,17 @@ public class FakeApiConnector implements CloudApiConnector {
   @NotNull
   @Override
   public Map fetchInstances(@NotNull Collection images) throws CheckedCloudException {
-    return null;
+    final Map<AbstractCloudImage, Map<String, AbstractInstance>> result = new HashMap<>();
+    for (Object image : images) {
+      result.put((AbstractCloudImage)image, fetchInstances((AbstractCloudImage)image));
+    }
+    return result;
   }
 
   @NotNull
   @Override
   public Map fetchInstances(@NotNull AbstractCloudImage image) throws CheckedCloudException {
-    return null;
+    // Cloud API returns a new list on every request
+    return new HashMap<>(myModel.getInstances(image.getId()));
   }
-}
\ No newline at end of file
+}
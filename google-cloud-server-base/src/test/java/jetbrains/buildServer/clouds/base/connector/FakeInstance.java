@@ -0,0 +1,66 @@
+package jetbrains.buildServer.clouds.base.connector;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Instance returned by {@link FakeApiConnector}.
+ */
+public class FakeInstance extends AbstractInstance {
+
+  private final String myName;
+  private final Date myStartDate = new Date();
+  private volatile InstanceStatus myStatus;
+
+  public FakeInstance(@NotNull final String name, @NotNull final InstanceStatus status) {
+    myName = name;
+    myStatus = status;
+  }
+
+  @NotNull
+  @Override
+  public String getName() {
+    return myName;
+  }
+
+  @Override
+  public boolean isInitialized() {
+    return true;
+  }
+
+  @Override
+  public Date getStartDate() {
+    return myStartDate;
+  }
+
+  @Override
+  public String getIpAddress() {
+    return null;
+  }
+
+  @Override
+  public InstanceStatus getInstanceStatus() {
+    return myStatus;
+  }
+
+  public void setInstanceStatus(@NotNull final InstanceStatus status) {
+    myStatus = status;
+  }
+
+  @Nullable
+  @Override
+  public String getProperty(final String name) {
+    return null;
+  }
+
+  @NotNull
+  @Override
+  public Map<String, String> getProperties() {
+    return Collections.emptyMap();
+  }
+}
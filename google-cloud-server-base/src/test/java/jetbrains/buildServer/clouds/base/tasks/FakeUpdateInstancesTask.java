@@ -0,0 +1,35 @@
+package jetbrains.buildServer.clouds.base.tasks;
+
+import jetbrains.buildServer.clouds.base.AbstractCloudClient;
+import jetbrains.buildServer.clouds.base.FakeCloudImage;
+import jetbrains.buildServer.clouds.base.FakeCloudInstance;
+import jetbrains.buildServer.clouds.base.FakeImageDetails;
+import jetbrains.buildServer.clouds.base.connector.CloudApiConnector;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+
+/**
+ * Updates the given images without a cloud client.
+ */
+public class FakeUpdateInstancesTask
+  extends UpdateInstancesTask<FakeCloudInstance, FakeCloudImage, AbstractCloudClient<FakeCloudInstance, FakeCloudImage, FakeImageDetails>> {
+
+  private final Collection<FakeCloudImage> myImages;
+
+  public FakeUpdateInstancesTask(@NotNull final CloudApiConnector<FakeCloudImage, FakeCloudInstance> connector,
+                                 @NotNull final Collection<FakeCloudImage> images) {
+    super(connector, null, Long.MAX_VALUE, true);
+    myImages = images;
+  }
+
+  @NotNull
+  @Override
+  protected Collection<FakeCloudImage> getImages() {
+    return myImages;
+  }
+
+  @Override
+  protected void updateClientErrors() {
+  }
+}
@@ -2,10 +2,17 @@
 
 package jetbrains.buildServer.clouds.base.tasks;
 
+import jetbrains.buildServer.clouds.InstanceStatus;
 import jetbrains.buildServer.clouds.base.AbstractCloudClient;
 import jetbrains.buildServer.clouds.base.AbstractCloudImage;
 import jetbrains.buildServer.clouds.base.AbstractCloudInstance;
+import jetbrains.buildServer.clouds.base.FakeCloudImage;
+import jetbrains.buildServer.clouds.base.FakeCloudInstance;
+import jetbrains.buildServer.clouds.base.FakeImageDetails;
+import jetbrains.buildServer.clouds.base.FakeModel;
 import jetbrains.buildServer.clouds.base.connector.CloudApiConnector;
+import jetbrains.buildServer.clouds.base.connector.FakeApiConnector;
+import jetbrains.buildServer.clouds.base.connector.FakeInstance;
 import jetbrains.buildServer.clouds.base.errors.CheckedCloudException;
 import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo;
 import org.jetbrains.annotations.NotNull;
@@ -14,8 +21,13 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
 /**
  * @author Sergey.Pak
  *         Date: 10/27/2014
@@ -71,6 +83,25 @@ public class UpdateInstancesTaskTest {
   public void test(){
   }
 
+  public void should_update_instances_from_cloud(){
+    final FakeModel model = new FakeModel();
+    final FakeCloudImage image = new FakeCloudImage(new FakeImageDetails("image", 10));
+    final FakeCloudInstance stopped = new FakeCloudInstance(image, "image-1");
+    stopped.setStatus(InstanceStatus.RUNNING);
+    image.addInstance(stopped);
+    final FakeCloudInstance removed = new FakeCloudInstance(image, "image-2");
+    removed.setStatus(InstanceStatus.RUNNING);
+    image.addInstance(removed);
+    model.addInstance(image.getId(), new FakeInstance("image-1", InstanceStatus.STOPPED));
+    model.addInstance(image.getId(), new FakeInstance("image-3", InstanceStatus.RUNNING));
+
+    new FakeUpdateInstancesTask(new FakeApiConnector(model), Collections.singletonList(image)).run();
+
+    assertEquals(stopped.getStatus(), InstanceStatus.STOPPED);
+    assertNull(image.findInstanceById("image-2"));
+    assertNotNull(image.findInstanceById("image-3"));
+  }
+
 
   @AfterMethod
   public void tearDown(){
@@ -0,0 +1,58 @@
+package jetbrains.buildServer.clouds.google.utils;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class AlphaNumericStringComparatorTest {
+
+  private final AlphaNumericStringComparator myComparator = new AlphaNumericStringComparator(Locale.US);
+
+  public void should_compare_numbers_by_value() {
+    assertTrue(myComparator.compare("debian-9", "debian-10") < 0);
+    assertTrue(myComparator.compare("n1-standard-16", "n1-standard-2") > 0);
+    assertTrue(myComparator.compare("ubuntu-1.10", "ubuntu-1.9") < 0);
+    assertEquals(myComparator.compare("image-010", "image-10"), 0);
+  }
+
+  public void should_compare_text_lexicographically() {
+    assertTrue(myComparator.compare("centos-7", "debian-7") < 0);
+    assertTrue(myComparator.compare("a1", "ab") < 0);
+    assertTrue(myComparator.compare("v20210101", "vx") < 0);
+  }
+
+  public void should_order_prefix_first() {
+    assertTrue(myComparator.compare("windows", "windows-2019") < 0);
+    assertTrue(myComparator.compare("windows-2019-core", "windows-2019") > 0);
+    assertTrue(myComparator.compare("", "a") < 0);
+    assertEquals(myComparator.compare("", ""), 0);
+  }
+
+  public void should_compare_decimals_of_other_locales_as_text() {
+    final AlphaNumericStringComparator comparator = new AlphaNumericStringComparator(Locale.GERMANY);
+    assertTrue(comparator.compare("1,5", "1,10") > 0);
+  }
+
+  public void should_sort_by_collation_keys() {
+    final List<String> names = Arrays.asList("n2-standard-80", "e2-micro", "n1-standard-8", "n1-standard-16", "n1-highmem-2");
+    final List<AlphaNumericStringComparator.CollationKey> keys = new ArrayList<AlphaNumericStringComparator.CollationKey>();
+    for (String name : names) {
+      keys.add(myComparator.getCollationKey(name));
+    }
+    Collections.sort(keys);
+
+    final List<String> sorted = new ArrayList<String>();
+    for (AlphaNumericStringComparator.CollationKey key : keys) {
+      sorted.add(key.getSource());
+    }
+    assertEquals(sorted, Arrays.asList("e2-micro", "n1-highmem-2", "n1-standard-8", "n1-standard-16", "n2-standard-80"));
+  }
+}
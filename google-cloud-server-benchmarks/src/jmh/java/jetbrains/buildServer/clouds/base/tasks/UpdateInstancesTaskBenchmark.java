@@ -0,0 +1,79 @@
+package jetbrains.buildServer.clouds.base.tasks;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.clouds.base.FakeCloudImage;
+import jetbrains.buildServer.clouds.base.FakeCloudInstance;
+import jetbrains.buildServer.clouds.base.FakeImageDetails;
+import jetbrains.buildServer.clouds.base.FakeModel;
+import jetbrains.buildServer.clouds.base.connector.FakeApiConnector;
+import jetbrains.buildServer.clouds.base.connector.FakeInstance;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a single instances update cycle of a cloud profile.
+ *
+ * Instances are spread evenly between images, on each cycle the given share of them
+ * changes status between running and stopped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateInstancesTaskBenchmark {
+
+  @Param({"1", "100", "1000"})
+  public int images;
+
+  @Param({"10", "1000", "50000"})
+  public int instances;
+
+  @Param({"0", "0.1"})
+  public double churn;
+
+  private final Random myRandom = new Random(42);
+  private final List<FakeInstance> myRealInstances = new ArrayList<FakeInstance>();
+  private FakeUpdateInstancesTask myTask;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    final FakeModel model = new FakeModel();
+    final List<FakeCloudImage> cloudImages = new ArrayList<FakeCloudImage>(images);
+    for (int i = 0; i < images; i++) {
+      cloudImages.add(new FakeCloudImage(new FakeImageDetails("image-" + i, Integer.MAX_VALUE)));
+    }
+
+    for (int i = 0; i < instances; i++) {
+      final FakeCloudImage image = cloudImages.get(i % images);
+      final FakeInstance realInstance = new FakeInstance(image.getId() + "-" + i, InstanceStatus.RUNNING);
+      model.addInstance(image.getId(), realInstance);
+      myRealInstances.add(realInstance);
+
+      final FakeCloudInstance instance = new FakeCloudInstance(image, realInstance.getName());
+      instance.setStatus(InstanceStatus.RUNNING);
+      image.addInstance(instance);
+    }
+
+    myTask = new FakeUpdateInstancesTask(new FakeApiConnector(model), cloudImages);
+  }
+
+  @Setup(Level.Invocation)
+  public void changeStatuses() {
+    final int count = (int)(myRealInstances.size() * churn);
+    for (int i = 0; i < count; i++) {
+      final FakeInstance instance = myRealInstances.get(myRandom.nextInt(myRealInstances.size()));
+      instance.setInstanceStatus(instance.getInstanceStatus() == InstanceStatus.RUNNING ? InstanceStatus.STOPPED : InstanceStatus.RUNNING);
+    }
+  }
+
+  @Benchmark
+  public void pollCycle() {
+    myTask.run();
+  }
+}
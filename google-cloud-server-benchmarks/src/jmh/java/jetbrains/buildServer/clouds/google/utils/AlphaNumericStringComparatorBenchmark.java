@@ -0,0 +1,69 @@
+package jetbrains.buildServer.clouds.google.utils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares sorting of image names with the legacy regex based comparator, the comparator and precomputed collation keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AlphaNumericStringComparatorBenchmark {
+
+  private static final String[] FAMILIES = {
+    "debian-%d-buster-v%d", "ubuntu-%d-04-focal-v%d", "centos-%d-v%d", "rhel-%d-v%d",
+    "windows-server-%d-dc-core-v%d", "cos-%d-lts-v%d", "sles-%d-sp3-v%d", "rocky-linux-%d-optimized-gcp-v%d"
+  };
+
+  @Param({"100", "1000", "5000"})
+  public int size;
+
+  private final LegacyAlphaNumericStringComparator myLegacyComparator = new LegacyAlphaNumericStringComparator(Locale.US);
+  private final AlphaNumericStringComparator myComparator = new AlphaNumericStringComparator(Locale.US);
+  private List<String> myNames;
+
+  @Setup
+  public void setUp() {
+    // Public image names look like "debian-11-bullseye-v20230509", i.e. a family, a version and a date
+    final Random random = new Random(42);
+    myNames = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++) {
+      final String family = FAMILIES[random.nextInt(FAMILIES.length)];
+      myNames.add(String.format(family, 7 + random.nextInt(16), 20180101 + random.nextInt(60000)));
+    }
+  }
+
+  @Benchmark
+  public String[] legacyComparator() {
+    final String[] names = myNames.toArray(new String[0]);
+    Arrays.sort(names, myLegacyComparator);
+    return names;
+  }
+
+  @Benchmark
+  public String[] comparator() {
+    final String[] names = myNames.toArray(new String[0]);
+    Arrays.sort(names, myComparator);
+    return names;
+  }
+
+  @Benchmark
+  public AlphaNumericStringComparator.CollationKey[] collationKeys() {
+    final AlphaNumericStringComparator.CollationKey[] keys = new AlphaNumericStringComparator.CollationKey[myNames.size()];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = myComparator.getCollationKey(myNames.get(i));
+    }
+    Arrays.sort(keys);
+    return keys;
+  }
+}
@@ -5,7 +5,8 @@ package jetbrains.buildServer.clouds.google
 import jetbrains.buildServer.clouds.CloudClientParameters
 import jetbrains.buildServer.clouds.base.connector.CloudApiConnector
 import jetbrains.buildServer.clouds.google.connector.GoogleApiConnector
-import jetbrains.buildServer.clouds.google.utils.FileIdProvider
+import jetbrains.buildServer.clouds.google.utils.LeaseIdProvider
+import jetbrains.buildServer.serverSide.AgentDescription
 import java.io.File
 
 /**
@@ -17,9 +18,17 @@ class GoogleCloudClient(params: CloudClientParameters,
                         private val googleIdxStorage: File)
     : GoogleCloudClientBase<GoogleCloudInstance, GoogleCloudImage, GoogleCloudImageDetails>(params, apiConnector, imagesHolder) {
 
+    private val myOperations = GoogleOperationDispatcher(params.getParameter("profileId") ?: params.profileDescription)
+
     override fun createImage(imageDetails: GoogleCloudImageDetails): GoogleCloudImage {
-        val idProvider = FileIdProvider(File(googleIdxStorage, imageDetails.sourceId + ".idx"))
-        return GoogleCloudImage(imageDetails, myApiConnector as GoogleApiConnector, idProvider)
+        val idProvider = LeaseIdProvider.forFile(File(googleIdxStorage, imageDetails.sourceId + ".idx"))
+        return GoogleCloudImage(imageDetails, myApiConnector as GoogleApiConnector, idProvider, myOperations)
+    }
+
+    override fun findInstanceByAgent(agent: AgentDescription): GoogleCloudInstance? {
+        return super.findInstanceByAgent(agent)?.apply {
+            image.launchStats.mark(this, GoogleLaunchPhase.AgentRegistered)
+        }
     }
 
     override fun dispose() {
@@ -27,5 +36,7 @@ class GoogleCloudClient(params: CloudClientParameters,
         images.forEach { image ->
             image.dispose()
         }
+        (myApiConnector as GoogleApiConnector).dispose()
+        myOperations.dispose()
     }
 }
\ No newline at end of file
@@ -5,7 +5,7 @@ package jetbrains.buildServer.clouds.google
 import jetbrains.buildServer.clouds.*
 import jetbrains.buildServer.clouds.base.AbstractCloudClientFactory
 import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo
-import jetbrains.buildServer.clouds.google.connector.GoogleApiConnectorImpl
+import jetbrains.buildServer.clouds.google.connector.GoogleApiConnectorRegistry
 import jetbrains.buildServer.serverSide.AgentDescription
 import jetbrains.buildServer.serverSide.PropertiesProcessor
 import jetbrains.buildServer.serverSide.ServerPaths
@@ -21,7 +21,8 @@ class GoogleCloudClientFactory(cloudRegistrar: CloudRegistrar,
                                serverPaths: ServerPaths,
                                private val myPluginDescriptor: PluginDescriptor,
                                private val mySettings: ServerSettings,
-                               private val myImagesHolder: GoogleCloudImagesHolder)
+                               private val myImagesHolder: GoogleCloudImagesHolder,
+                               private val myConnectorRegistry: GoogleApiConnectorRegistry)
     : AbstractCloudClientFactory<GoogleCloudImageDetails, GoogleCloudClient>(cloudRegistrar) {
 
     private val myGoogleStorage: File = File(serverPaths.pluginDataDirectory, "googleIdx")
@@ -44,9 +45,9 @@ class GoogleCloudClientFactory(cloudRegistrar: CloudRegistrar,
         val credentialsType = params.getParameter(GoogleConstants.CREDENTIALS_TYPE)
         val apiConnector = if (credentialsType != GoogleConstants.CREDENTIALS_ENVIRONMENT) {
             val accessKey = getParameter(params, GoogleConstants.ACCESS_KEY)
-            GoogleApiConnectorImpl(accessKey)
+            myConnectorRegistry.createConnector(accessKey)
         } else {
-            GoogleApiConnectorImpl()
+            myConnectorRegistry.createConnector()
         }
 
         apiConnector.setServerId(mySettings.serverUUID)
@@ -103,7 +104,13 @@ class GoogleCloudClientFactory(cloudRegistrar: CloudRegistrar,
                     (it.getParameter(GoogleConstants.GROWING_ID) ?: "").toBoolean(),
                     (it.getParameter(GoogleConstants.EXTERNAL_IP) ?: "").toBoolean(),
                     it.getParameter(GoogleConstants.SERVICE_ACCOUNT),
-                    it.getParameter(GoogleConstants.SCOPES)
+                    it.getParameter(GoogleConstants.SCOPES),
+                    it.getParameter(GoogleConstants.WARM_POOL_SIZE),
+                    it.getParameter(GoogleConstants.WARM_POOL_MAX_AGE),
+                    it.getParameter(GoogleConstants.WARM_POOL_REFILL)?.let { refill ->
+                        GoogleWarmPoolRefill.valueOf(refill)
+                    },
+                    (it.getParameter(GoogleConstants.SUSPEND_ON_STOP) ?: "").toBoolean()
             )
         }
     }
@@ -3,7 +3,6 @@
 package jetbrains.buildServer.clouds.google
 
 import com.google.api.gax.rpc.InvalidArgumentException
-import com.google.cloud.compute.v1.Operation
 import com.intellij.openapi.diagnostic.Logger
 import jetbrains.buildServer.clouds.CloudInstanceUserData
 import jetbrains.buildServer.clouds.InstanceStatus
@@ -12,12 +11,18 @@ import jetbrains.buildServer.clouds.base.AbstractCloudImage
 import jetbrains.buildServer.clouds.base.connector.AbstractInstance
 import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo
 import jetbrains.buildServer.clouds.google.connector.GoogleApiConnector
+import jetbrains.buildServer.clouds.google.connector.GoogleApiRateLimiter
+import jetbrains.buildServer.clouds.google.connector.GoogleInstance
+import jetbrains.buildServer.clouds.google.connector.GoogleLaunchRequest
 import jetbrains.buildServer.clouds.google.types.GoogleHandler
 import jetbrains.buildServer.clouds.google.types.GoogleImageFamilyHandler
 import jetbrains.buildServer.clouds.google.types.GoogleImageHandler
 import jetbrains.buildServer.clouds.google.types.GoogleTemplateHandler
 import jetbrains.buildServer.clouds.google.utils.IdProvider
+import jetbrains.buildServer.clouds.google.utils.InstanceIndexAllocator
 import kotlinx.coroutines.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 import kotlin.coroutines.CoroutineContext
 
 /**
@@ -25,7 +30,8 @@ import kotlin.coroutines.CoroutineContext
  */
 class GoogleCloudImage constructor(private val myImageDetails: GoogleCloudImageDetails,
                                    private val myApiConnector: GoogleApiConnector,
-                                   private val myIdProvider: IdProvider)
+                                   private val myIdProvider: IdProvider,
+                                   private val myOperations: GoogleOperationDispatcher)
     : AbstractCloudImage<GoogleCloudInstance, GoogleCloudImageDetails>(myImageDetails.sourceId, myImageDetails.sourceId),
 DisposableHandle, CoroutineScope {
 
@@ -36,7 +42,24 @@ DisposableHandle, CoroutineScope {
     }
 
     override val coroutineContext: CoroutineContext
-        get() = Dispatchers.Default + job
+        get() = myOperations.dispatcher + job
+
+    val operations: GoogleOperationDispatcher
+        get() = myOperations
+
+    val launchStats = GoogleLaunchStats()
+
+    private val myPoolLock = Any()
+    private val myPoolLaunches = ConcurrentHashMap.newKeySet<String>()
+    private var myPoolFailures = 0
+    private var myPoolRefillTime = 0L
+    private val myRemovals = ConcurrentHashMap.newKeySet<String>()
+    @Volatile private var mySuspended = emptySet<String>()
+    private val myIndexes = InstanceIndexAllocator(myImageDetails.sourceId)
+
+    private val myLaunchCoalescer = GoogleLaunchCoalescer(this) { requests ->
+        handler.createInstances(requests)
+    }
 
     private val myImageHandlers = mapOf(
             GoogleCloudImageType.Image to GoogleImageHandler(myApiConnector),
@@ -51,39 +74,102 @@ DisposableHandle, CoroutineScope {
     override fun createInstanceFromReal(realInstance: AbstractInstance): GoogleCloudInstance {
         val zone = realInstance.properties[GoogleConstants.ZONE]!!
         return GoogleCloudInstance(this, realInstance.name, zone).apply {
-            properties = realInstance.properties
+            properties = HashMap(realInstance.properties)
         }
     }
 
     override fun canStartNewInstance(): Boolean {
-        return activeInstances.size < myImageDetails.maxInstances
+        return isInstancesDetected && activeInstances.size < myImageDetails.maxInstances && !myOperations.isSaturated
     }
 
-    override fun startNewInstance(userData: CloudInstanceUserData): GoogleCloudInstance = runBlocking {
+    override fun startNewInstance(userData: CloudInstanceUserData): GoogleCloudInstance {
         if (!canStartNewInstance()) {
             throw QuotaException("Unable to start more instances. Limit has reached")
         }
 
-        createInstance(userData)
+        takeSuspendedInstance()?.let {
+            resumeInstance(it, userData)
+            return it
+        }
+
+        takePoolInstance()?.let {
+            startPoolInstance(it, userData)
+            refillWarmPool()
+            return it
+        }
+
+        return createInstance(userData)
+    }
+
+    override fun addInstance(instance: GoogleCloudInstance) {
+        super.addInstance(instance)
+        myIndexes.markUsed(instance.instanceId)
+    }
+
+    override fun removeInstance(instanceId: String) {
+        super.removeInstance(instanceId)
+        myIndexes.release(instanceId)
+    }
+
+    override fun detectNewInstances(realInstances: MutableMap<String, out AbstractInstance>) {
+        // Indexes are updated before the image is marked as detected, so names of existing instances are never allocated
+        realInstances.keys.forEach { myIndexes.markUsed(it) }
+        myIndexes.sync(realInstances.keys)
+        mySuspended = realInstances.filterValues { it is GoogleInstance && it.isSuspended }.keys.toHashSet()
+        super.detectNewInstances(realInstances)
+        realInstances.forEach { (name, realInstance) ->
+            if (realInstance.instanceStatus == InstanceStatus.RUNNING) {
+                findInstanceById(name)?.let { launchStats.mark(it, GoogleLaunchPhase.RunningSeen) }
+            }
+        }
+        refillWarmPool()
     }
 
     /**
      * Creates a new virtual machine.
      *
-     * @param userData info about server.
+     * @param userData info about server, warm pool instance is created when it's not specified.
      * @return created instance.
      */
-    private fun createInstance(userData: CloudInstanceUserData): GoogleCloudInstance {
+    private fun createInstance(userData: CloudInstanceUserData?): GoogleCloudInstance {
         val name = getInstanceName()
         val instance = GoogleCloudInstance(this, name, imageDetails.zone)
         instance.status = InstanceStatus.SCHEDULED_TO_START
-        val data = GoogleUtils.setVmNameForTag(userData, name)
+        // Agent takes its name from the instance metadata, so launch data is the same for
+        // instances of a burst and they could be created by a single bulk insert
+        val request = GoogleLaunchRequest(instance, userData?.let { GoogleUtils.setVmNameForTag(it, "") })
+        if (userData == null) {
+            instance.properties[GoogleConstants.TAG_POOL] = "true"
+            myPoolLaunches.add(instance.instanceId)
+        } else {
+            instance.launchTimeline.start()
+        }
 
-        launch {
+        myOperations.launch(this) {
+            var submitted = false
+            var pooled = false
             try {
                 LOG.info("Creating new virtual machine ${instance.name}")
-                val operation = handler.createInstance(instance, data)
-                processOperationResult(instance, operation)
+                myLaunchCoalescer.add(request)
+                val operation = request.operation.await()
+                submitted = true
+                instance.startOperationId = operation.id
+                instance.status = InstanceStatus.STARTING
+                launchStats.mark(instance, GoogleLaunchPhase.InsertAccepted)
+
+                var errors = myApiConnector.awaitOperation(operation)
+                if (errors.isEmpty() && userData == null) {
+                    // Pool instance is stopped right after creation and waits to be taken
+                    instance.status = InstanceStatus.STOPPING
+                    errors = myApiConnector.awaitOperation(myApiConnector.stopVm(instance))
+                    if (errors.isEmpty()) {
+                        instance.status = InstanceStatus.STOPPED
+                        LOG.info("Virtual machine ${instance.name} has been added to the warm pool")
+                        pooled = true
+                        return@launch
+                    }
+                }
+                processOperationResult(instance, errors)
             } catch (e: Throwable) {
                 LOG.warnAndDebugDetails(e.message, e)
 
@@ -94,15 +180,25 @@ DisposableHandle, CoroutineScope {
                     updateErrors(errInfo)
                 }
 
+                if (!submitted && GoogleApiRateLimiter.isRateLimitError(e)) {
+                    // Insert was rejected, so there is nothing to remove
+                    removeInstance(instance.instanceId)
+                    return@launch
+                }
+
                 LOG.info("Removing allocated resources for virtual machine ${instance.name}")
                 try {
-                    myApiConnector.deleteVm(instance)
+                    myApiConnector.deleteVm(instance, true)
                     LOG.info("Allocated resources for virtual machine ${instance.name} have been removed")
                     removeInstance(instance.instanceId)
                 } catch (e: Throwable) {
                     val message = "Failed to delete allocated resources for virtual machine ${instance.name}: ${e.message}"
                     LOG.warnAndDebugDetails(message, e)
                 }
+            } finally {
+                if (myPoolLaunches.remove(instance.instanceId)) {
+                    poolLaunchFinished(pooled)
+                }
             }
         }
 
@@ -111,18 +207,204 @@ DisposableHandle, CoroutineScope {
         return instance
     }
 
-    private fun processOperationResult(instance: GoogleCloudInstance, operation: Operation) {
-        instance.startOperationId = operation.id
-        instance.status = InstanceStatus.RUNNING
+    /**
+     * Assigns TeamCity data to the stopped pool instance and starts it.
+     */
+    private fun startPoolInstance(instance: GoogleCloudInstance, userData: CloudInstanceUserData) {
+        val data = GoogleUtils.setVmNameForTag(userData, instance.name)
+        instance.properties.remove(GoogleConstants.TAG_POOL)
+        instance.launchTimeline.start()
+
+        myOperations.launch(this) {
+            try {
+                LOG.info("Starting virtual machine ${instance.name} from the warm pool")
+                var errors = myApiConnector.awaitOperation(myApiConnector.setUserData(instance, data))
+                if (errors.isEmpty()) {
+                    instance.status = InstanceStatus.STARTING
+                    val operation = myApiConnector.startVm(instance)
+                    launchStats.mark(instance, GoogleLaunchPhase.InsertAccepted)
+                    errors = myApiConnector.awaitOperation(operation)
+                }
+                processOperationResult(instance, errors)
+            } catch (e: Throwable) {
+                LOG.warnAndDebugDetails(e.message, e)
+                instance.status = InstanceStatus.ERROR
+                instance.updateErrors(TypedCloudErrorInfo.fromException(e))
+            }
+        }
+    }
+
+    /**
+     * Assigns TeamCity data to the suspended instance and resumes it, the agent keeps its state from the previous run.
+     */
+    private fun resumeInstance(instance: GoogleCloudInstance, userData: CloudInstanceUserData) {
+        val data = GoogleUtils.setVmNameForTag(userData, instance.name)
+        instance.launchTimeline.start()
+
+        myOperations.launch(this) {
+            try {
+                LOG.info("Resuming virtual machine ${instance.name}")
+                var errors = myApiConnector.awaitOperation(myApiConnector.setUserData(instance, data))
+                if (errors.isEmpty()) {
+                    instance.status = InstanceStatus.STARTING
+                    val operation = myApiConnector.resumeVm(instance)
+                    launchStats.mark(instance, GoogleLaunchPhase.InsertAccepted)
+                    errors = myApiConnector.awaitOperation(operation)
+                }
+                processOperationResult(instance, errors)
+            } catch (e: Throwable) {
+                LOG.warnAndDebugDetails(e.message, e)
+                instance.status = InstanceStatus.ERROR
+                instance.updateErrors(TypedCloudErrorInfo.fromException(e))
+            }
+        }
+    }
+
+    /**
+     * Takes the instance which is suspended according to the last update,
+     * terminated instances and ones which are being removed could not be resumed.
+     */
+    private fun takeSuspendedInstance(): GoogleCloudInstance? {
+        if (!myImageDetails.suspendOnStop) return null
+
+        val suspended = mySuspended
+        synchronized(myPoolLock) {
+            return instances.filter { instance ->
+                instance.status == InstanceStatus.STOPPED &&
+                        instance.properties[GoogleConstants.TAG_POOL] == null &&
+                        suspended.contains(instance.instanceId) &&
+                        !myRemovals.contains(instance.instanceId)
+            }.maxByOrNull { it.statusUpdateTime }?.apply {
+                status = InstanceStatus.SCHEDULED_TO_START
+            }
+        }
+    }
+
+    private fun takePoolInstance(): GoogleCloudInstance? {
+        if (myImageDetails.warmPoolSize <= 0) return null
+
+        synchronized(myPoolLock) {
+            return poolInstances.minByOrNull { it.startedTime }?.apply {
+                status = InstanceStatus.SCHEDULED_TO_START
+            }
+        }
+    }
+
+    /**
+     * Keeps the configured number of stopped instances in the warm pool, removes expired and excess ones.
+     */
+    private fun refillWarmPool() {
+        synchronized(myPoolLock) {
+            val size = myImageDetails.warmPoolSize
+            val maxAge = TimeUnit.MINUTES.toMillis(myImageDetails.warmPoolMaxAge.toLong())
+            val now = System.currentTimeMillis()
+            val (expired, pool) = poolInstances.partition { maxAge > 0 && now - it.startedTime.time > maxAge }
+            val excess = pool.sortedByDescending { it.startedTime }.drop(size)
+
+            (expired + excess).forEach {
+                LOG.info("Removing virtual machine ${it.name} from the warm pool")
+                it.status = InstanceStatus.SCHEDULED_TO_STOP
+                myOperations.tryLaunch(this) {
+                    try {
+                        val errors = myApiConnector.awaitOperation(myApiConnector.deleteVm(it, true))
+                        if (errors.isEmpty()) {
+                            removeInstance(it.instanceId)
+                        } else {
+                            it.status = InstanceStatus.ERROR
+                            it.updateErrors(*errors)
+                        }
+                    } catch (e: Throwable) {
+                        LOG.warnAndDebugDetails("Failed to remove virtual machine ${it.name}: ${e.message}", e)
+                        it.status = InstanceStatus.ERROR
+                        it.updateErrors(TypedCloudErrorInfo.fromException(e))
+                    }
+                } ?: run {
+                    // Queue is full, the instance is removed by one of the next updates
+                    it.status = InstanceStatus.STOPPED
+                }
+            }
+
+            if (myOperations.isSaturated || now < myPoolRefillTime) return
+
+            // Failed pool instances wait for removal, replacing them right away could loop on quota or image errors
+            val failed = instances.count { instance ->
+                instance.status == InstanceStatus.ERROR && instance.properties[GoogleConstants.TAG_POOL] != null &&
+                        !myPoolLaunches.contains(instance.instanceId)
+            }
+            repeat(size - (pool.size - excess.size) - myPoolLaunches.size - failed) {
+                createInstance(null)
+            }
+        }
+    }
+
+    /**
+     * Postpones next refills of the warm pool with exponential backoff while pool launches fail.
+     */
+    private fun poolLaunchFinished(success: Boolean) {
+        synchronized(myPoolLock) {
+            if (success) {
+                myPoolFailures = 0
+                myPoolRefillTime = 0
+                return
+            }
+
+            myPoolFailures++
+            val delay = minOf(MIN_POOL_REFILL_DELAY_MS shl minOf(myPoolFailures - 1, 10), MAX_POOL_REFILL_DELAY_MS)
+            myPoolRefillTime = System.currentTimeMillis() + delay
+            LOG.info("Failed to add virtual machine to the warm pool of image ${myImageDetails.sourceId}, " +
+                    "next refill in ${delay / 1000} seconds")
+        }
+    }
+
+    /**
+     * Deletes the terminated instance in background unless its removal is already in progress.
+     */
+    fun removeTerminatedInstance(name: String, zone: String) {
+        if (!myRemovals.add(name)) return
+
+        myOperations.tryLaunch(this) {
+            try {
+                LOG.info("Removing terminated instance $name")
+                val instance = GoogleCloudInstance(this@GoogleCloudImage, name, zone)
+                val errors = myApiConnector.awaitOperation(myApiConnector.deleteVm(instance, true))
+                if (errors.isNotEmpty()) {
+                    LOG.info("Failed to remove instance $name: ${errors.joinToString { it.message }}")
+                }
+            } catch (e: Exception) {
+                LOG.infoAndDebugDetails("Failed to remove instance $name", e)
+            }
+        }?.invokeOnCompletion {
+            myRemovals.remove(name)
+        } ?: myRemovals.remove(name)
+    }
+
+    private fun processOperationResult(instance: GoogleCloudInstance, errors: Array<TypedCloudErrorInfo>) {
+        if (errors.isEmpty()) {
+            launchStats.mark(instance, GoogleLaunchPhase.OperationDone)
+            instance.status = InstanceStatus.RUNNING
+            return
+        }
+
+        // Failed instance will be removed with reporting of errors by the next instances update
+        LOG.warn("Failed to create virtual machine ${instance.name}: ${errors.joinToString { it.message }}")
+        instance.startErrors = errors
+        instance.status = InstanceStatus.ERROR
+        instance.updateErrors(*errors)
     }
 
     override fun restartInstance(instance: GoogleCloudInstance) {
         instance.status = InstanceStatus.RESTARTING
 
-        launch {
+        myOperations.launch(this) {
             try {
                 LOG.info("Restarting virtual machine ${instance.name}")
-                myApiConnector.restartVm(instance)
+                val errors = myApiConnector.awaitOperation(myApiConnector.restartVm(instance))
+                if (errors.isEmpty()) {
+                    instance.status = InstanceStatus.RUNNING
+                } else {
+                    instance.status = InstanceStatus.ERROR
+                    instance.updateErrors(*errors)
+                }
             } catch (e: Throwable) {
                 LOG.warnAndDebugDetails(e.message, e)
                 instance.status = InstanceStatus.ERROR
@@ -134,15 +416,26 @@ DisposableHandle, CoroutineScope {
     override fun terminateInstance(instance: GoogleCloudInstance) {
         instance.status = InstanceStatus.SCHEDULED_TO_STOP
 
-        launch {
+        myOperations.launch(this) {
             try {
-                if (myImageDetails.behaviour.isDeleteAfterStop) {
+                val operation = if (myImageDetails.suspendOnStop) {
+                    LOG.info("Suspending virtual machine ${instance.name} due to cloud image settings")
+                    myApiConnector.suspendVm(instance)
+                } else if (myImageDetails.behaviour.isDeleteAfterStop) {
                     LOG.info("Removing virtual machine ${instance.name} due to cloud image settings")
                     myApiConnector.deleteVm(instance)
                 } else {
                     LOG.info("Stopping virtual machine ${instance.name}")
                     myApiConnector.stopVm(instance)
                 }
+                instance.status = InstanceStatus.STOPPING
+
+                val errors = myApiConnector.awaitOperation(operation)
+                if (errors.isNotEmpty()) {
+                    instance.status = InstanceStatus.ERROR
+                    instance.updateErrors(*errors)
+                    return@launch
+                }
                 instance.status = InstanceStatus.STOPPED
                 LOG.info("Virtual machine ${instance.name} has been successfully terminated")
             } catch (e: Throwable) {
@@ -161,15 +454,12 @@ DisposableHandle, CoroutineScope {
         get() = myImageHandlers[imageDetails.type]!!
 
     private fun getInstanceName(): String {
-        val sourceName = myImageDetails.sourceId.toLowerCase()
+        val sourceName = myImageDetails.sourceId.lowercase()
 
         val id = if (imageDetails.growingId) {
             myIdProvider.nextId
         } else {
-            val keys = instances.map { it.instanceId.toLowerCase() }
-            var i = 1
-            while (keys.contains(sourceName + i)) i++
-            i
+            myIndexes.allocate()
         }
 
         return sourceName + id
@@ -181,9 +471,23 @@ DisposableHandle, CoroutineScope {
      * @return instances.
      */
     private val activeInstances: List<GoogleCloudInstance>
-        get() = instances.filter { instance -> instance.status.isStartingOrStarted }
+        get() = instances.filter { instance ->
+            instance.status.isStartingOrStarted && !myPoolLaunches.contains(instance.instanceId)
+        }
+
+    /**
+     * Returns stopped instances which could be taken from the warm pool.
+     */
+    private val poolInstances: List<GoogleCloudInstance>
+        get() = instances.filter { instance ->
+            // Suspended instances are resumed rather than started, so they don't join the pool
+            instance.status == InstanceStatus.STOPPED && (instance.properties[GoogleConstants.TAG_POOL] != null ||
+                    myImageDetails.refill == GoogleWarmPoolRefill.Reuse && !myImageDetails.suspendOnStop)
+        }
 
     companion object {
         private val LOG = Logger.getInstance(GoogleCloudImage::class.java.name)
+        private const val MIN_POOL_REFILL_DELAY_MS = 60 * 1000L
+        private const val MAX_POOL_REFILL_DELAY_MS = 30 * 60 * 1000L
     }
 }
\ No newline at end of file
@@ -64,7 +64,15 @@ class GoogleCloudImageDetails(
         @SerializedName(GoogleConstants.SERVICE_ACCOUNT)
         val serviceAccount: String?,
         @SerializedName(GoogleConstants.SCOPES)
-        val scopes: String?) : CloudImageDetails {
+        val scopes: String?,
+        @SerializedName(GoogleConstants.WARM_POOL_SIZE)
+        private val warmPoolSizeValue: String?,
+        @SerializedName(GoogleConstants.WARM_POOL_MAX_AGE)
+        private val warmPoolMaxAgeValue: String?,
+        @SerializedName(GoogleConstants.WARM_POOL_REFILL)
+        val warmPoolRefill: GoogleWarmPoolRefill?,
+        @SerializedName(GoogleConstants.SUSPEND_ON_STOP)
+        val suspendOnStop: Boolean = false) : CloudImageDetails {
 
     override fun getSourceId(): String {
         return sourceId
@@ -75,9 +83,23 @@ class GoogleCloudImageDetails(
     }
 
     override fun getBehaviour(): CloneBehaviour {
-        return CloneBehaviour.FRESH_CLONE
+        return if (suspendOnStop || warmPoolSize > 0 && refill == GoogleWarmPoolRefill.Reuse) {
+            CloneBehaviour.START_STOP
+        } else {
+            CloneBehaviour.FRESH_CLONE
+        }
     }
 
     val type
         get(): GoogleCloudImageType = imageType ?: GoogleCloudImageType.Image
+
+    val refill
+        get(): GoogleWarmPoolRefill = warmPoolRefill ?: GoogleWarmPoolRefill.Create
+
+    // Cleared fields are saved as empty strings, they disable the warm pool rather than break the profile
+    val warmPoolSize
+        get(): Int = warmPoolSizeValue?.trim()?.toIntOrNull()?.coerceAtLeast(0) ?: 0
+
+    val warmPoolMaxAge
+        get(): Int = warmPoolMaxAgeValue?.trim()?.toIntOrNull()?.coerceAtLeast(0) ?: 0
 }
\ No newline at end of file
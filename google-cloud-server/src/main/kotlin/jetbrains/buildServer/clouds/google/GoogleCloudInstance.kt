@@ -3,6 +3,7 @@
 package jetbrains.buildServer.clouds.google
 
 import jetbrains.buildServer.clouds.base.AbstractCloudInstance
+import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo
 import jetbrains.buildServer.serverSide.AgentDescription
 
 /**
@@ -13,6 +14,8 @@ class GoogleCloudInstance internal constructor(image: GoogleCloudImage, val id:
 
     var properties: MutableMap<String, String> = HashMap()
     @Volatile var startOperationId: String? = null
+    @Volatile var startErrors: Array<TypedCloudErrorInfo> = emptyArray()
+    val launchTimeline = GoogleLaunchTimeline()
 
     override fun containsAgent(agent: AgentDescription): Boolean {
         val agentInstanceName = agent.configurationParameters[GoogleAgentProperties.INSTANCE_NAME]
@@ -103,6 +103,18 @@ class GoogleConstants {
     val scopes: String
         get() = SCOPES
 
+    val warmPoolSize: String
+        get() = WARM_POOL_SIZE
+
+    val warmPoolMaxAge: String
+        get() = WARM_POOL_MAX_AGE
+
+    val warmPoolRefill: String
+        get() = WARM_POOL_REFILL
+
+    val suspendOnStop: String
+        get() = SUSPEND_ON_STOP
+
     companion object {
         const val CREDENTIALS_TYPE = "credentialsType"
         const val CREDENTIALS_ENVIRONMENT = "environment"
@@ -131,6 +143,10 @@ class GoogleConstants {
         const val TAG_DATA = "teamcityData"
         const val TAG_PROFILE = "teamcityProfile"
         const val TAG_SOURCE = "teamcitySource"
+        const val TAG_POOL = "teamcityPool"
+        const val LABEL_SERVER = "teamcity-server"
+        const val LABEL_PROFILE = "teamcity-profile"
+        const val LABEL_SOURCE = "teamcity-source"
         const val PROFILE_ID = "profileId"
         const val PREEMPTIBLE = "preemptible"
         const val METADATA = "metadata"
@@ -138,5 +154,9 @@ class GoogleConstants {
         const val SERVICE_ACCOUNT = "serviceAccount"
         const val SCOPES = "scopes"
         const val EXTERNAL_IP = "externalIP"
+        const val WARM_POOL_SIZE = "warmPoolSize"
+        const val WARM_POOL_MAX_AGE = "warmPoolMaxAge"
+        const val WARM_POOL_REFILL = "warmPoolRefill"
+        const val SUSPEND_ON_STOP = "suspendOnStop"
     }
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package jetbrains.buildServer.clouds.google
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.clouds.google.connector.GoogleLaunchRequest
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import kotlinx.coroutines.*
+
+/**
+ * Collects launch requests of an image within a short window and submits them as a single batch.
+ *
+ * Bursts of queued builds produce a number of identical requests which differ only by the instance
+ * name and metadata, so the shared resources are resolved once per batch.
+ */
+class GoogleLaunchCoalescer(private val scope: CoroutineScope,
+                            private val submit: suspend (List<GoogleLaunchRequest>) -> Unit) {
+
+    private val myLock = Any()
+    private var myPending = mutableListOf<GoogleLaunchRequest>()
+    private var myFlush: Job? = null
+
+    fun add(request: GoogleLaunchRequest) {
+        val window = TeamCityProperties.getLong(WINDOW_PROPERTY, DEFAULT_WINDOW_MS)
+        val maxBatchSize = TeamCityProperties.getInteger(MAX_BATCH_SIZE_PROPERTY, DEFAULT_MAX_BATCH_SIZE)
+
+        synchronized(myLock) {
+            myPending.add(request)
+            if (window <= 0 || myPending.size >= maxBatchSize) {
+                myFlush?.cancel()
+                submitBatch(takePending())
+            } else if (myFlush == null) {
+                myFlush = scope.launch {
+                    delay(window)
+                    submitBatch(synchronized(myLock) { takePending() })
+                }
+            }
+        }
+    }
+
+    private fun takePending(): List<GoogleLaunchRequest> {
+        val batch = myPending
+        myPending = mutableListOf()
+        myFlush = null
+        return batch
+    }
+
+    private fun submitBatch(batch: List<GoogleLaunchRequest>) {
+        if (batch.isEmpty()) return
+
+        scope.launch {
+            LOG.debug("Submitting ${batch.size} launch request(s)")
+            try {
+                submit(batch)
+            } catch (e: CancellationException) {
+                batch.forEach { it.operation.cancel(e) }
+                throw e
+            } catch (e: Throwable) {
+                batch.forEach { it.operation.completeExceptionally(e) }
+            }
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(GoogleLaunchCoalescer::class.java.name)
+        private const val WINDOW_PROPERTY = "teamcity.cloud.google.launch.coalesceWindowMs"
+        private const val DEFAULT_WINDOW_MS = 300L
+        private const val MAX_BATCH_SIZE_PROPERTY = "teamcity.cloud.google.launch.maxBatchSize"
+        private const val DEFAULT_MAX_BATCH_SIZE = 50
+    }
+}
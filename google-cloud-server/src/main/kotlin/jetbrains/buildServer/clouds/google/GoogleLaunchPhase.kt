@@ -0,0 +1,13 @@
+package jetbrains.buildServer.clouds.google
+
+/**
+ * Phases of an instance launch in the order they are passed.
+ */
+enum class GoogleLaunchPhase(val description: String) {
+    Requested("Requested"),
+    InsertAccepted("Insert accepted"),
+    OperationDone("Operation done"),
+    RunningSeen("Running seen by poll"),
+    AgentRegistered("Agent registered"),
+    FirstBuildStarted("First build started")
+}
@@ -0,0 +1,35 @@
+package jetbrains.buildServer.clouds.google
+
+import jetbrains.buildServer.clouds.google.utils.LatencyHistogram
+import java.util.*
+
+/**
+ * Launch latency histograms of an image.
+ *
+ * Each phase histogram keeps durations since the previous phase, the total one keeps
+ * durations from the launch request until the agent is registered.
+ */
+class GoogleLaunchStats {
+
+    private val myPhases = EnumMap<GoogleLaunchPhase, LatencyHistogram>(GoogleLaunchPhase::class.java).apply {
+        GoogleLaunchPhase.values().filter { it != GoogleLaunchPhase.Requested }.forEach {
+            this[it] = LatencyHistogram()
+        }
+    }
+
+    val total = LatencyHistogram()
+
+    val phases: Map<GoogleLaunchPhase, LatencyHistogram>
+        get() = myPhases
+
+    fun mark(instance: GoogleCloudInstance, phase: GoogleLaunchPhase) {
+        val timeline = instance.launchTimeline
+        val duration = timeline.mark(phase)
+        if (duration < 0) return
+
+        myPhases[phase]?.record(duration)
+        if (phase == GoogleLaunchPhase.AgentRegistered) {
+            total.record(timeline.elapsed(phase))
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package jetbrains.buildServer.clouds.google
+
+import jetbrains.buildServer.serverSide.BuildServerAdapter
+import jetbrains.buildServer.serverSide.BuildServerListener
+import jetbrains.buildServer.serverSide.SRunningBuild
+import jetbrains.buildServer.util.EventDispatcher
+
+/**
+ * Completes launch timelines of instances when they start the first build.
+ *
+ * Image of the agent is found by the profile and source parameters reported by the agent plugin.
+ */
+class GoogleLaunchStatsListener(events: EventDispatcher<BuildServerListener>,
+                                private val myImagesHolder: GoogleCloudImagesHolder) : BuildServerAdapter() {
+
+    init {
+        events.addListener(this)
+    }
+
+    override fun buildStarted(build: SRunningBuild) {
+        val parameters = build.agent.configurationParameters
+        val instanceName = parameters[GoogleAgentProperties.INSTANCE_NAME] ?: return
+        val profileId = parameters[GoogleAgentProperties.PROFILE_ID] ?: return
+        val sourceId = parameters[GoogleAgentProperties.SOURCE_ID] ?: return
+
+        val image = myImagesHolder.findImage(profileId, sourceId) as? GoogleCloudImage ?: return
+        image.findInstanceById(instanceName)?.let {
+            image.launchStats.mark(it, GoogleLaunchPhase.FirstBuildStarted)
+        }
+    }
+}
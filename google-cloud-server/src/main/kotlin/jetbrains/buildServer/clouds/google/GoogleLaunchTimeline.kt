@@ -0,0 +1,55 @@
+package jetbrains.buildServer.clouds.google
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Timestamps of launch phases of an instance, reset on every start of the instance.
+ */
+class GoogleLaunchTimeline {
+
+    private val myTimes = AtomicLongArray(PHASES.size)
+
+    fun start() {
+        for (i in 1 until PHASES.size) {
+            myTimes.set(i, 0)
+        }
+        myTimes.set(GoogleLaunchPhase.Requested.ordinal, System.currentTimeMillis())
+    }
+
+    /**
+     * Marks the phase once per launch.
+     *
+     * @return time passed since the previous marked phase or -1 if the phase was not marked.
+     */
+    fun mark(phase: GoogleLaunchPhase): Long {
+        if (myTimes.get(GoogleLaunchPhase.Requested.ordinal) == 0L) {
+            // Launch was not observed, e.g. instance was found after the server restart
+            return -1
+        }
+
+        val now = System.currentTimeMillis()
+        if (!myTimes.compareAndSet(phase.ordinal, 0, now)) {
+            return -1
+        }
+
+        for (i in phase.ordinal - 1 downTo 0) {
+            val time = myTimes.get(i)
+            if (time > 0) return now - time
+        }
+
+        return -1
+    }
+
+    /**
+     * Returns time passed since the launch request or -1 if the phase was not marked.
+     */
+    fun elapsed(phase: GoogleLaunchPhase): Long {
+        val requested = myTimes.get(GoogleLaunchPhase.Requested.ordinal)
+        val time = myTimes.get(phase.ordinal)
+        return if (requested > 0 && time > 0) time - requested else -1
+    }
+
+    companion object {
+        private val PHASES = GoogleLaunchPhase.values()
+    }
+}
@@ -0,0 +1,112 @@
+package jetbrains.buildServer.clouds.google
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.clouds.google.utils.LatencyHistogram
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.util.executors.ExecutorsFactory
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs virtual machine operations of a cloud profile.
+ *
+ * Operations use dedicated threads instead of the shared default dispatcher, the number of active
+ * operations is limited and the rest wait in a queue. When the queue is full new instances are not
+ * started and background operations are skipped until the queue drains.
+ */
+class GoogleOperationDispatcher(val profileId: String) {
+
+    private val myExecutor = ExecutorsFactory.newFixedDaemonExecutor("Google operations for profile $profileId",
+            TeamCityProperties.getInteger(THREADS_PROPERTY, DEFAULT_THREADS).coerceAtLeast(1))
+    private val myMaxActive = TeamCityProperties.getInteger(MAX_ACTIVE_PROPERTY, DEFAULT_MAX_ACTIVE).coerceAtLeast(1)
+    private val myMaxQueued = TeamCityProperties.getInteger(MAX_QUEUED_PROPERTY, DEFAULT_MAX_QUEUED).coerceAtLeast(0)
+    private val myPermits = Semaphore(myMaxActive)
+    private val myActive = AtomicInteger()
+    private val myQueued = AtomicInteger()
+    private val myRejected = AtomicLong()
+
+    val dispatcher = myExecutor.asCoroutineDispatcher()
+
+    /**
+     * Time operations spent in the queue before they became active.
+     */
+    val queueWait = LatencyHistogram()
+
+    val active: Int
+        get() = myActive.get()
+
+    val queued: Int
+        get() = myQueued.get()
+
+    val rejected: Long
+        get() = myRejected.get()
+
+    val isSaturated: Boolean
+        get() = myQueued.get() >= myMaxQueued
+
+    /**
+     * Launches an operation requested by TeamCity, it is queued even when the queue is full.
+     */
+    fun launch(scope: CoroutineScope, block: suspend CoroutineScope.() -> Unit): Job {
+        myQueued.incrementAndGet()
+        return start(scope, block)
+    }
+
+    /**
+     * Launches a background operation unless the queue is full.
+     *
+     * @return operation job or null if the operation was rejected.
+     */
+    fun tryLaunch(scope: CoroutineScope, block: suspend CoroutineScope.() -> Unit): Job? {
+        if (myQueued.incrementAndGet() > myMaxQueued) {
+            myQueued.decrementAndGet()
+            myRejected.incrementAndGet()
+            LOG.debug("Operation queue of profile $profileId is full, background operation is postponed")
+            return null
+        }
+        return start(scope, block)
+    }
+
+    private fun start(scope: CoroutineScope, block: suspend CoroutineScope.() -> Unit): Job {
+        val queuedAt = System.currentTimeMillis()
+        val dequeued = AtomicBoolean()
+        return scope.launch(dispatcher) {
+            myPermits.withPermit {
+                if (dequeued.compareAndSet(false, true)) myQueued.decrementAndGet()
+                queueWait.record(System.currentTimeMillis() - queuedAt)
+                myActive.incrementAndGet()
+                try {
+                    block()
+                } finally {
+                    myActive.decrementAndGet()
+                }
+            }
+        }.apply {
+            invokeOnCompletion {
+                // The operation could be cancelled while it was waiting in the queue
+                if (dequeued.compareAndSet(false, true)) myQueued.decrementAndGet()
+            }
+        }
+    }
+
+    fun dispose() {
+        dispatcher.close()
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(GoogleOperationDispatcher::class.java.name)
+        private const val THREADS_PROPERTY = "teamcity.cloud.google.profile.operations.threads"
+        private const val DEFAULT_THREADS = 4
+        private const val MAX_ACTIVE_PROPERTY = "teamcity.cloud.google.profile.operations.maxActive"
+        private const val DEFAULT_MAX_ACTIVE = 32
+        private const val MAX_QUEUED_PROPERTY = "teamcity.cloud.google.profile.operations.maxQueued"
+        private const val DEFAULT_MAX_QUEUED = 256
+    }
+}
@@ -0,0 +1,16 @@
+package jetbrains.buildServer.clouds.google
+
+/**
+ * Defines how instances of the warm pool are replenished.
+ */
+enum class GoogleWarmPoolRefill {
+    /**
+     * Used instances are removed and the pool is refilled with new ones.
+     */
+    Create,
+
+    /**
+     * Used instances are stopped and returned to the pool.
+     */
+    Reuse
+}
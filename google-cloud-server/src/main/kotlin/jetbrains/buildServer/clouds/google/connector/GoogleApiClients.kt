@@ -0,0 +1,256 @@
+package jetbrains.buildServer.clouds.google.connector
+
+import com.google.api.client.http.HttpRequestInitializer
+import com.google.api.client.http.HttpTransport
+import com.google.api.gax.core.CredentialsProvider
+import com.google.api.gax.core.ExecutorProvider
+import com.google.api.gax.core.FixedCredentialsProvider
+import com.google.api.gax.httpjson.InstantiatingHttpJsonChannelProvider
+import com.google.api.gax.rpc.ApiCallContext
+import com.google.auth.http.HttpCredentialsAdapter
+import com.google.auth.oauth2.GoogleCredentials
+import com.google.cloud.ServiceOptions
+import com.google.cloud.compute.v1.*
+import com.google.cloud.http.HttpTransportOptions
+import com.google.cloud.resourcemanager.ResourceManager
+import com.google.cloud.resourcemanager.ResourceManagerOptions
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Google API clients shared by all connectors which use the same credentials and project.
+ */
+class GoogleApiClients internal constructor(val key: String,
+                                            val credentials: GoogleCredentials,
+                                            val projectId: String?,
+                                            private val transport: HttpTransport,
+                                            private val metrics: GoogleApiMetrics,
+                                            private val executorProvider: ExecutorProvider,
+                                            val rateLimiter: GoogleApiRateLimiter) {
+
+    private val myJob = SupervisorJob()
+    private val myReferences = AtomicInteger(0)
+    private val myClients = mutableListOf<AutoCloseable>()
+    @Volatile private var myLastReleased = System.currentTimeMillis()
+
+    internal val references: Int
+        get() = myReferences.get()
+
+    internal val lastReleased: Long
+        get() = myLastReleased
+
+    internal fun retain() = apply {
+        myReferences.incrementAndGet()
+    }
+
+    internal fun release() {
+        if (myReferences.decrementAndGet() <= 0) {
+            myLastReleased = System.currentTimeMillis()
+        }
+    }
+
+    /**
+     * Scope for background work which is shared by all connectors.
+     */
+    val scope = CoroutineScope(Dispatchers.Default + myJob)
+
+    val resourceCache = GoogleResourceCache(scope)
+
+    val instanceSnapshots = GoogleInstanceSnapshotService(this)
+
+    val operationTracker = GoogleOperationTracker(this)
+
+    val resourceManager: ResourceManager by lazy {
+        ResourceManagerOptions.newBuilder()
+                .setCredentials(credentials)
+                .setTransportOptions(MeteredTransportOptions(HttpTransportOptions.newBuilder()
+                        .setHttpTransportFactory { transport }, metrics))
+                .apply {
+                    endpointOverride?.let { setHost(it.trimEnd('/')) }
+                }
+                .build()
+                .service
+    }
+
+    val operationsClient: ZoneOperationClient by lazy {
+        register(ZoneOperationClient.create(ZoneOperationSettings.newBuilder()
+                .setCredentialsProvider(credentialsProvider)
+                .setTransportChannelProvider(channelProvider)
+                .setExecutorProvider(executorProvider)
+                .apply { stubSettingsBuilder.setTracerFactory(tracerFactory) }
+                .build()))
+    }
+
+    val projectClient: ProjectClient by lazy {
+        register(ProjectClient.create(ProjectSettings.newBuilder()
+                .setCredentialsProvider(credentialsProvider)
+                .setTransportChannelProvider(channelProvider)
+                .setExecutorProvider(executorProvider)
+                .apply { stubSettingsBuilder.setTracerFactory(tracerFactory) }
+                .build()))
+    }
+
+    val instanceClient: InstanceClient by lazy {
+        register(InstanceClient.create(InstanceSettings.newBuilder()
+                .setCredentialsProvider(credentialsProvider)
+                .setTransportChannelProvider(channelProvider)
+                .setExecutorProvider(executorProvider)
+                .apply { stubSettingsBuilder.setTracerFactory(tracerFactory) }
+                .build()))
+    }
+
+    val imageClient: ImageClient by lazy {
+        register(ImageClient.create(ImageSettings.newBuilder()
+                .setCredentialsProvider(credentialsProvider)
+                .setTransportChannelProvider(channelProvider)
+                .setExecutorProvider(executorProvider)
+                .apply { stubSettingsBuilder.setTracerFactory(tracerFactory) }
+                .build()))
+    }
+
+    val zoneClient: ZoneClient by lazy {
+        register(ZoneClient.create(ZoneSettings.newBuilder()
+                .setCredentialsProvider(credentialsProvider)
+                .setTransportChannelProvider(channelProvider)
+                .setExecutorProvider(executorProvider)
+                .apply { stubSettingsBuilder.setTracerFactory(tracerFactory) }
+                .build()))
+    }
+
+    val machineTypeClient: MachineTypeClient by lazy {
+        register(MachineTypeClient.create(MachineTypeSettings.newBuilder()
+                .setCredentialsProvider(credentialsProvider)
+                .setTransportChannelProvider(channelProvider)
+                .setExecutorProvider(executorProvider)
+                .apply { stubSettingsBuilder.setTracerFactory(tracerFactory) }
+                .build()))
+    }
+
+    val networkClient: NetworkClient by lazy {
+        register(NetworkClient.create(NetworkSettings.newBuilder()
+                .setCredentialsProvider(credentialsProvider)
+                .setTransportChannelProvider(channelProvider)
+                .setExecutorProvider(executorProvider)
+                .apply { stubSettingsBuilder.setTracerFactory(tracerFactory) }
+                .build()))
+    }
+
+    val subNetworkClient: SubnetworkClient by lazy {
+        register(SubnetworkClient.create(SubnetworkSettings.newBuilder()
+                .setCredentialsProvider(credentialsProvider)
+                .setTransportChannelProvider(channelProvider)
+                .setExecutorProvider(executorProvider)
+                .apply { stubSettingsBuilder.setTracerFactory(tracerFactory) }
+                .build()))
+    }
+
+    val diskTypeClient: DiskTypeClient by lazy {
+        register(DiskTypeClient.create(DiskTypeSettings.newBuilder()
+                .setCredentialsProvider(credentialsProvider)
+                .setTransportChannelProvider(channelProvider)
+                .setExecutorProvider(executorProvider)
+                .apply { stubSettingsBuilder.setTracerFactory(tracerFactory) }
+                .build()))
+    }
+
+    val instanceTemplateClient: InstanceTemplateClient by lazy {
+        register(InstanceTemplateClient.create(InstanceTemplateSettings.newBuilder()
+                .setCredentialsProvider(credentialsProvider)
+                .setTransportChannelProvider(channelProvider)
+                .setExecutorProvider(executorProvider)
+                .apply { stubSettingsBuilder.setTracerFactory(tracerFactory) }
+                .build()))
+    }
+
+    val restClient: GoogleComputeRestClient by lazy {
+        GoogleComputeRestClient(transport, GoogleMeteredRequestInitializer(metrics, HttpCredentialsAdapter(scopedCredentials)), projectId)
+    }
+
+    /**
+     * Creates a call context for paged listings of the API method, e.g. `zones.list`.
+     *
+     * Paged callables bypass the tracer factory, so listings should use it to be recorded in metrics.
+     */
+    fun listingContext(method: String): ApiCallContext = tracerFactory.newCallContext(method)
+
+    private val channelProvider: InstantiatingHttpJsonChannelProvider by lazy {
+        InstantiatingHttpJsonChannelProvider.newBuilder()
+                .setEndpoint(endpoint(InstanceSettings.getDefaultEndpoint()))
+                .setHttpTransport(transport)
+                .build()
+    }
+
+    private val tracerFactory: GoogleApiTracerFactory by lazy {
+        GoogleApiTracerFactory(metrics, projectId)
+    }
+
+    private val credentialsProvider: CredentialsProvider by lazy {
+        FixedCredentialsProvider.create(scopedCredentials)
+    }
+
+    private val scopedCredentials: GoogleCredentials by lazy {
+        // All compute clients use the same default scopes, so they can share a single access token
+        if (credentials.createScopedRequired()) {
+            credentials.createScoped(InstanceSettings.getDefaultServiceScopes())
+        } else {
+            credentials
+        }
+    }
+
+    private fun <T : AutoCloseable> register(client: T): T {
+        synchronized(myClients) {
+            myClients.add(client)
+        }
+        return client
+    }
+
+    internal fun close() {
+        myJob.cancel()
+        resourceCache.invalidate()
+        val clients = synchronized(myClients) {
+            myClients.toList().apply { myClients.clear() }
+        }
+        clients.forEach {
+            try {
+                it.close()
+            } catch (e: Exception) {
+                LOG.debug("Failed to close Google API client: ${e.message}", e)
+            }
+        }
+    }
+
+    /**
+     * Transport options which record statistics of resource manager requests.
+     */
+    private class MeteredTransportOptions(builder: HttpTransportOptions.Builder,
+                                          @Transient private val metrics: GoogleApiMetrics) : HttpTransportOptions(builder) {
+
+        override fun getHttpRequestInitializer(serviceOptions: ServiceOptions<*, *>): HttpRequestInitializer {
+            return GoogleMeteredRequestInitializer(metrics, super.getHttpRequestInitializer(serviceOptions))
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(GoogleApiClients::class.java.name)
+        private const val ENDPOINT_PROPERTY = "teamcity.cloud.google.api.endpoint"
+        private val ENDPOINT_ROOT = Regex("^https?://[^/]+/")
+
+        /**
+         * Root URL which replaces Google API hosts, e.g. of a local Compute Engine stand-in.
+         */
+        internal val endpointOverride: String?
+            get() = TeamCityProperties.getProperty(ENDPOINT_PROPERTY).takeIf { it.isNotBlank() }
+
+        /**
+         * Returns the endpoint with the host replaced by the overridden one.
+         */
+        internal fun endpoint(default: String): String {
+            val root = endpointOverride ?: return default
+            return ENDPOINT_ROOT.replace(default, root.trimEnd('/') + "/")
+        }
+    }
+}
@@ -4,25 +4,62 @@ package jetbrains.buildServer.clouds.google.connector
 
 import com.google.cloud.compute.v1.Operation
 import jetbrains.buildServer.clouds.CloudInstanceUserData
-import jetbrains.buildServer.clouds.base.connector.CloudApiConnector
+import jetbrains.buildServer.clouds.base.connector.AsyncCloudApiConnector
+import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo
 import jetbrains.buildServer.clouds.google.GoogleCloudImage
 import jetbrains.buildServer.clouds.google.GoogleCloudInstance
 
 /**
  * Google API connector.
  */
-interface GoogleApiConnector : CloudApiConnector<GoogleCloudImage, GoogleCloudInstance> {
-    suspend fun createImageInstance(instance: GoogleCloudInstance, userData: CloudInstanceUserData): Operation
+interface GoogleApiConnector : AsyncCloudApiConnector<GoogleCloudImage, GoogleCloudInstance> {
+    /**
+     * Creates virtual machines from image settings, each request is completed with its insert operation.
+     */
+    suspend fun createImageInstances(requests: List<GoogleLaunchRequest>)
 
-    suspend fun createTemplateInstance(instance: GoogleCloudInstance, userData: CloudInstanceUserData): Operation
+    /**
+     * Creates virtual machines from instance template, each request is completed with its insert operation.
+     */
+    suspend fun createTemplateInstances(requests: List<GoogleLaunchRequest>)
 
-    suspend fun deleteVm(instance: GoogleCloudInstance)
+    /**
+     * Assigns TeamCity data to a stopped warm pool instance before it is started.
+     */
+    suspend fun setUserData(instance: GoogleCloudInstance, userData: CloudInstanceUserData): Operation
 
-    suspend fun restartVm(instance: GoogleCloudInstance)
+    /**
+     * Deletes the instance.
+     *
+     * @param cleanup whether the instance is removed in background, such calls yield to others under load.
+     */
+    suspend fun deleteVm(instance: GoogleCloudInstance, cleanup: Boolean = false): Operation
 
-    suspend fun startVm(instance: GoogleCloudInstance)
+    suspend fun restartVm(instance: GoogleCloudInstance): Operation
 
-    suspend fun stopVm(instance: GoogleCloudInstance)
+    suspend fun startVm(instance: GoogleCloudInstance): Operation
+
+    suspend fun stopVm(instance: GoogleCloudInstance): Operation
+
+    /**
+     * Suspends the instance preserving its memory and disks.
+     */
+    suspend fun suspendVm(instance: GoogleCloudInstance): Operation
+
+    suspend fun resumeVm(instance: GoogleCloudInstance): Operation
+
+    /**
+     * Waits until the operation is done.
+     *
+     * @return operation errors.
+     */
+    suspend fun awaitOperation(operation: Operation): Array<TypedCloudErrorInfo>
+
+    suspend fun imageExists(project: String?, image: String): Boolean
+
+    suspend fun imageFamilyExists(project: String?, family: String): Boolean
+
+    suspend fun templateExists(template: String): Boolean
 
     suspend fun getImages(project: String?): Map<String, String>
 
@@ -39,4 +76,9 @@ interface GoogleApiConnector : CloudApiConnector<GoogleCloudImage, GoogleCloudIn
     suspend fun getSubnets(region: String): Map<String, List<String>>
 
     suspend fun getDiskTypes(zone: String): Map<String, String>
+
+    /**
+     * Releases shared API clients used by this connector.
+     */
+    fun dispose()
 }
\ No newline at end of file
@@ -4,61 +4,48 @@ package jetbrains.buildServer.clouds.google.connector
 
 import com.google.api.client.googleapis.util.Utils
 import com.google.api.client.json.GenericJson
-import com.google.api.gax.core.CredentialsProvider
-import com.google.api.gax.core.FixedCredentialsProvider
+import com.google.api.gax.paging.AbstractPage
+import com.google.api.gax.rpc.NotFoundException
 import com.google.api.gax.rpc.PermissionDeniedException
 import com.google.api.gax.rpc.StatusCode
-import com.google.auth.oauth2.GoogleCredentials
-import com.google.cloud.ServiceOptions
 import com.google.cloud.compute.v1.*
-import com.google.cloud.resourcemanager.ResourceManagerOptions
 import com.intellij.openapi.diagnostic.Logger
 import jetbrains.buildServer.clouds.CloudException
 import jetbrains.buildServer.clouds.CloudInstanceUserData
+import jetbrains.buildServer.clouds.InstanceStatus
 import jetbrains.buildServer.clouds.base.connector.AbstractInstance
 import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo
 import jetbrains.buildServer.clouds.google.*
+import jetbrains.buildServer.clouds.google.connector.GoogleInstanceSnapshotService.Companion.labelValue
+import jetbrains.buildServer.clouds.google.types.GoogleSourceLookups
 import jetbrains.buildServer.clouds.google.utils.AlphaNumericStringComparator
 import jetbrains.buildServer.util.StringUtil
 import kotlinx.coroutines.*
+import kotlinx.coroutines.future.future
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 
-class GoogleApiConnectorImpl : GoogleApiConnector {
+class GoogleApiConnectorImpl internal constructor(private val myClients: GoogleApiClients,
+                                                   private val myRegistry: GoogleApiConnectorRegistry) : GoogleApiConnector {
 
     private val comparator = AlphaNumericStringComparator()
+    private val myDisposed = AtomicBoolean(false)
     private var myServerId: String? = null
     private var myProfileId: String? = null
-    private val myCredentials: GoogleCredentials
-    private var myProjectId: String? = null
-    private var myAccessKey: String? = null
-
-    constructor(accessKey: String) {
-        myAccessKey = accessKey
-        myCredentials = accessKey.trim().byteInputStream().use {
-            val factory = Utils.getDefaultJsonFactory()
-            val parser = factory.createJsonParser(it)
-            val json = parser.parse(GenericJson::class.java)
-            (json["project_id"] as String?)?.let { projectId ->
-                myProjectId = projectId
-            }
-
-            it.reset()
-            GoogleCredentials.fromStream(it)
-        }
-    }
-
-    constructor() {
-        myCredentials = GoogleCredentials.getApplicationDefault()
-        myProjectId = ServiceOptions.getDefaultProjectId()
-    }
+    private val myProjectId: String? = myClients.projectId
+    private val myCache: GoogleResourceCache = myClients.resourceCache
+    @Volatile private var myLookups: GoogleSourceLookups? = null
+    @Volatile private var myLegacyScanRequired = true
+    private val myLabelBackfills: MutableSet<String> = ConcurrentHashMap.newKeySet()
+    private val mySnapshots: GoogleInstanceSnapshotService = myClients.instanceSnapshots
+    private val mySubscriberId = UUID.randomUUID().toString()
+    @Volatile private var myLastLaunchTime = 0L
 
     override fun test() {
-        val resourceManager = ResourceManagerOptions.newBuilder()
-                .setCredentials(myCredentials)
-                .build()
-                .service
-
         val missingPermissions = mutableListOf<String>()
-        resourceManager.testPermissions(myProjectId, REQUIRED_PERMISSIONS).forEachIndexed { i, exists ->
+        myClients.resourceManager.testPermissions(myProjectId, REQUIRED_PERMISSIONS).forEachIndexed { i, exists ->
             if (!exists) missingPermissions.add(REQUIRED_PERMISSIONS[i])
         }
 
@@ -67,20 +54,22 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
         }
     }
 
-    override suspend fun createImageInstance(instance: GoogleCloudInstance, userData: CloudInstanceUserData): Operation = coroutineScope {
-        val details = instance.image.imageDetails
+    override fun dispose() {
+        if (myDisposed.compareAndSet(false, true)) {
+            mySnapshots.unsubscribe(mySubscriberId)
+            myRegistry.release(myClients)
+        }
+    }
+
+    override suspend fun createImageInstances(requests: List<GoogleLaunchRequest>) = submitLaunch(requests) {
+        val details = requests.first().instance.image.imageDetails
         val zone = details.zone
 
         val machineType = if (details.machineCustom) {
             "custom-${details.machineCores}-${details.machineMemory}${if (details.machineMemoryExt) "-ext" else ""}"
         } else details.machineType!!
 
-        val metadata = mutableMapOf(
-                GoogleConstants.TAG_SERVER to myServerId,
-                GoogleConstants.TAG_DATA to userData.serialize(),
-                GoogleConstants.TAG_PROFILE to myProfileId,
-                GoogleConstants.TAG_SOURCE to details.sourceId
-        ).apply {
+        val customMetadata = mutableMapOf<String, String?>().apply {
             details.metadata?.let {
                 if (it.isBlank()) {
                     return@let
@@ -103,7 +92,6 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
             }
         }
 
-
         val instanceBootImageProject = if (details.sourceProject.isNullOrBlank()) myProjectId else details.sourceProject
 
         @Suppress("IMPLICIT_CAST_TO_ANY")
@@ -113,7 +101,7 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
             else -> LOG.warn("Invalid imageType: ${details.imageType}")
         }
 
-        LOG.info("Creating instance from ${details.imageType}, using source: $instanceBootImage")
+        LOG.info("Creating ${requests.size} instance(s) from ${details.imageType}, using source: $instanceBootImage")
 
         val networkId = details.network ?: "default"
         val network = findNetwork(networkId)
@@ -141,7 +129,7 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
             }
             .build()
 
-        val instanceInfo = getInstanceBuilder(instance)
+        val instancePrototype = Instance.newBuilder()
                 .setMachineType(ProjectZoneMachineTypeName.format(machineType, myProjectId, zone))
                 .addDisks(AttachedDisk.newBuilder()
                         .setInitializeParams(AttachedDiskInitializeParams.newBuilder()
@@ -162,7 +150,6 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
                         .setType("PERSISTENT")
                         .build())
                 .addNetworkInterfaces(networkInterface)
-                .setMetadata(getMetadata(metadata))
                 .apply {
                     if (!details.serviceAccount.isNullOrBlank()) {
                         val scopes = StringUtil.split(details.scopes
@@ -175,44 +162,112 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
                 }
                 .build()
 
-        instanceClient.insertInstanceCallable().futureCall(InsertInstanceHttpRequest.newBuilder()
-                .setZone(ProjectZoneName.format(myProjectId, zone))
-                .setInstanceResource(instanceInfo)
-                .build())
-                .await()
+        return@submitLaunch { request ->
+            val metadata = getLaunchMetadata(request).apply { putAll(customMetadata) }
+            val instanceInfo = getInstanceBuilder(request.instance)
+                    .mergeFrom(instancePrototype)
+                    .setMetadata(getMetadata(metadata))
+                    .build()
+
+            InsertInstanceHttpRequest.newBuilder()
+                    .setZone(ProjectZoneName.format(myProjectId, zone))
+                    .setInstanceResource(instanceInfo)
+                    .build()
+        }
     }
 
-    override suspend fun createTemplateInstance(instance: GoogleCloudInstance, userData: CloudInstanceUserData): Operation = coroutineScope {
-        val details = instance.image.imageDetails
+    override suspend fun createTemplateInstances(requests: List<GoogleLaunchRequest>) = submitLaunch(requests) {
+        val details = requests.first().instance.image.imageDetails
         val zone = details.zone
 
         LOG.info("Fetching Google Instance Template")
-        val instanceTemplateBuilder = getInstanceTemplate(instance).toBuilder()
+        val instanceTemplate = getInstanceTemplate(requests.first().instance)
         LOG.info("Google Instance Template properties captured from GCP")
-        val instanceTemplateMetadataBuilder = instanceTemplateBuilder
-                .getProperties()
-                .toBuilder()
-                .getMetadata()
-                .toBuilder()
-                .addAllItems(getMetadata(mutableMapOf(
-                        GoogleConstants.TAG_SERVER to myServerId,
-                        GoogleConstants.TAG_DATA to userData.serialize(),
-                        GoogleConstants.TAG_PROFILE to myProfileId,
-                        GoogleConstants.TAG_SOURCE to details.sourceId
-                ))?.getItemsList())
-
-        LOG.info("Creating an instance builder from merged metadata")
-        val instanceInfo = getInstanceBuilder(instance, true)
-                .setMetadata(instanceTemplateMetadataBuilder.build())
-                .build()
+        val templateMetadata = instanceTemplate.properties.metadata
+
+        LOG.info("Creating ${requests.size} instance(s) from Instance Template: ${instanceTemplate.name}")
+        return@submitLaunch { request ->
+            val instanceMetadata = templateMetadata.toBuilder()
+                    .addAllItems(getMetadata(getLaunchMetadata(request))?.itemsList)
+            val instanceInfo = getInstanceBuilder(request.instance, instanceTemplate)
+                    .setMetadata(instanceMetadata.build())
+                    .build()
+
+            InsertInstanceHttpRequest.newBuilder()
+                    .setSourceInstanceTemplate(ProjectGlobalInstanceTemplateName.format(details.instanceTemplate, myProjectId))
+                    .setZone(ProjectZoneName.format(myProjectId, zone))
+                    .setInstanceResource(instanceInfo)
+                    .build()
+        }
+    }
+
+    /**
+     * Prepares resources shared by launch requests once and submits them with as few inserts as possible.
+     *
+     * Requests which differ only by instance names are created by a single bulk insert, others are
+     * inserted concurrently. Each request is completed with its operation or error, a failure of the
+     * preparation fails all requests.
+     *
+     * Bulk insert is all or nothing: when the zone could not fit every instance of a group none of them
+     * is created and all requests of the group fail. Partial creation is not requested since the single
+     * operation doesn't report which of the instances were created.
+     */
+    private suspend fun submitLaunch(requests: List<GoogleLaunchRequest>,
+                                     prepare: suspend () -> (GoogleLaunchRequest) -> InsertInstanceHttpRequest) = coroutineScope {
+        myLastLaunchTime = System.currentTimeMillis()
+        val inserts = try {
+            val insertRequest = prepare()
+            requests.map { it to insertRequest(it) }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Throwable) {
+            requests.forEach { it.operation.completeExceptionally(e) }
+            return@coroutineScope
+        }
 
-        LOG.info("Creating instance from Instance Template: ${instanceTemplateBuilder.getName()}")
-        instanceClient.insertInstanceCallable().futureCall(InsertInstanceHttpRequest.newBuilder()
-                .setSourceInstanceTemplate(ProjectGlobalInstanceTemplateName.format(details.instanceTemplate, myProjectId))
-                .setZone(ProjectZoneName.format(myProjectId, zone))
-                .setInstanceResource(instanceInfo)
-                .build())
-                .await()
+        // Resources are compared without names since instance models don't implement equals
+        val groups = inserts.groupBy { (_, insert) ->
+            insert.sourceInstanceTemplate to insert.instanceResource.toBuilder().setName(null).build().toString()
+        }.values
+
+        groups.forEach { group ->
+            val batch = group.map { it.first }
+            val insert = group.first().second
+            launch {
+                try {
+                    val operation = mutate {
+                        if (batch.size == 1) {
+                            instanceClient.insertInstanceCallable()
+                                    .futureCall(insert)
+                                    .await()
+                        } else {
+                            LOG.info("Creating ${batch.size} instances with a single bulk insert")
+                            myClients.restClient.bulkInsertInstances(insert.zone.substringAfterLast('/'),
+                                    batch.map { it.instance.instanceId },
+                                    insert.instanceResource,
+                                    insert.sourceInstanceTemplate)
+                        }
+                    }
+                    batch.forEach { it.operation.complete(operation) }
+                } catch (e: CancellationException) {
+                    batch.forEach { it.operation.cancel(e) }
+                    throw e
+                } catch (e: Throwable) {
+                    batch.forEach { it.operation.completeExceptionally(e) }
+                }
+            }
+        }
+    }
+
+    private fun getLaunchMetadata(request: GoogleLaunchRequest) = mutableMapOf(
+            GoogleConstants.TAG_SERVER to myServerId,
+            GoogleConstants.TAG_PROFILE to myProfileId,
+            GoogleConstants.TAG_SOURCE to request.instance.image.imageDetails.sourceId
+    ).apply {
+        // Pool instances get TeamCity data when they are taken from the pool
+        request.userData?.let {
+            this[GoogleConstants.TAG_DATA] = it.serialize()
+        } ?: this.put(GoogleConstants.TAG_POOL, "true")
     }
 
     private fun parseSubnetFromURL(subnetURL: String): String {
@@ -224,18 +279,17 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
         return ProjectRegionSubnetworkName.format(projectID, region, subnet)
     }
 
-    private fun getInstanceBuilder(instance: GoogleCloudInstance, fromTemplate: Boolean): Instance.Builder {
-
-        if (fromTemplate)
-            return Instance.newBuilder()
-                    .setName(instance.instanceId)
-
-        return getInstanceBuilder(instance)
+    private fun getInstanceBuilder(instance: GoogleCloudInstance, template: InstanceTemplate): Instance.Builder {
+        // Instance labels replace the template ones, so TeamCity labels are added on top of them
+        return Instance.newBuilder()
+                .setName(instance.instanceId)
+                .putAllLabels(template.properties.labelsMap.orEmpty() + getLabels(instance))
     }
 
     private fun getInstanceBuilder(instance: GoogleCloudInstance): Instance.Builder {
         return Instance.newBuilder()
                 .setName(instance.instanceId)
+                .putAllLabels(getLabels(instance))
                 .setScheduling(Scheduling.newBuilder()
                         .setAutomaticRestart(false)
                         .setOnHostMaintenance("TERMINATE")
@@ -243,7 +297,7 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
                         .build())
     }
 
-    private fun getInstanceTemplate(instance: GoogleCloudInstance): InstanceTemplate {
+    private suspend fun getInstanceTemplate(instance: GoogleCloudInstance): InstanceTemplate {
         LOG.info("getInstanceTemplate template name: ${instance.image.imageDetails.instanceTemplate}")
         LOG.info("getInstanceTemplate GCP project ID: $myProjectId")
         val instanceTemplateName = ProjectGlobalInstanceTemplateName.format(
@@ -252,7 +306,61 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
         )
 
         LOG.info("GCP get Instance Template: $instanceTemplateName")
-        return instanceTemplateClient.getInstanceTemplate(instanceTemplateName.toString())
+        return read {
+            instanceTemplateClient.getInstanceTemplateCallable()
+                    .futureCall(GetInstanceTemplateHttpRequest.newBuilder()
+                            .setInstanceTemplate(instanceTemplateName)
+                            .build())
+                    .await()
+        }
+    }
+
+    /**
+     * Labels mirror TeamCity metadata keys to allow server-side filtering of instances.
+     */
+    private fun getLabels(instance: GoogleCloudInstance) = mapOf(
+            GoogleConstants.LABEL_SERVER to labelValue(myServerId),
+            GoogleConstants.LABEL_PROFILE to labelValue(myProfileId),
+            GoogleConstants.LABEL_SOURCE to labelValue(instance.image.imageDetails.sourceId)
+    )
+
+    /**
+     * Adds TeamCity labels to an instance created before labels were introduced,
+     * so it is found by the filtered listing and full scans are no longer required.
+     */
+    private fun backfillLabels(instance: GoogleInstance) {
+        val zone = instance.getProperty(GoogleConstants.ZONE) ?: return
+        val key = "$zone/${instance.name}"
+        if (!myLabelBackfills.add(key)) return
+
+        myClients.scope.launch {
+            try {
+                val labels = instance.labels + mapOf(
+                        GoogleConstants.LABEL_SERVER to labelValue(myServerId),
+                        GoogleConstants.LABEL_PROFILE to labelValue(myProfileId),
+                        GoogleConstants.LABEL_SOURCE to labelValue(instance.getProperty(GoogleConstants.TAG_SOURCE))
+                )
+                val operation = mutate {
+                    instanceClient.setLabelsInstanceCallable()
+                            .futureCall(SetLabelsInstanceHttpRequest.newBuilder()
+                                    .setInstance(ProjectZoneInstanceName.format(instance.name, myProjectId, zone))
+                                    .setInstancesSetLabelsRequestResource(InstancesSetLabelsRequest.newBuilder()
+                                            .setLabelFingerprint(instance.labelFingerprint)
+                                            .putAllLabels(labels)
+                                            .build())
+                                    .build())
+                            .await()
+                }
+                myClients.operationTracker.awaitDone(operation)
+                LOG.info("Added TeamCity labels to instance ${instance.name} created by a previous plugin version")
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                LOG.warnAndDebugDetails("Failed to add TeamCity labels to instance ${instance.name}", e)
+            } finally {
+                myLabelBackfills.remove(key)
+            }
+        }
     }
 
     private fun getMetadata(metadata: Map<String, String?>): Metadata? {
@@ -265,183 +373,335 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
                 }).build()
     }
 
-    override suspend fun startVm(instance: GoogleCloudInstance) = coroutineScope {
-        instanceClient.startInstanceCallable()
-                .futureCall(StartInstanceHttpRequest.newBuilder()
-                        .setInstance(getInstance(instance))
-                        .build())
-                .await()
-        Unit
+    override suspend fun startVm(instance: GoogleCloudInstance): Operation = coroutineScope {
+        mutate {
+            instanceClient.startInstanceCallable()
+                    .futureCall(StartInstanceHttpRequest.newBuilder()
+                            .setInstance(getInstance(instance))
+                            .build())
+                    .await()
+        }
     }
 
-    override suspend fun restartVm(instance: GoogleCloudInstance) = coroutineScope {
-        instanceClient.resetInstanceCallable()
-                .futureCall(ResetInstanceHttpRequest.newBuilder()
-                        .setInstance(getInstance(instance))
-                        .build())
-                .await()
-        Unit
+    override suspend fun restartVm(instance: GoogleCloudInstance): Operation = coroutineScope {
+        mutate {
+            instanceClient.resetInstanceCallable()
+                    .futureCall(ResetInstanceHttpRequest.newBuilder()
+                            .setInstance(getInstance(instance))
+                            .build())
+                    .await()
+        }
     }
 
-    override suspend fun stopVm(instance: GoogleCloudInstance) = coroutineScope {
-        instanceClient.stopInstanceCallable()
-                .futureCall(StopInstanceHttpRequest.newBuilder()
-                        .setInstance(getInstance(instance))
-                        .build())
-                .await()
-        Unit
+    override suspend fun stopVm(instance: GoogleCloudInstance): Operation = coroutineScope {
+        mutate {
+            instanceClient.stopInstanceCallable()
+                    .futureCall(StopInstanceHttpRequest.newBuilder()
+                            .setInstance(getInstance(instance))
+                            .build())
+                    .await()
+        }
     }
 
-    override suspend fun deleteVm(instance: GoogleCloudInstance) = coroutineScope {
-        instanceClient.deleteInstanceCallable()
-                .futureCall(DeleteInstanceHttpRequest.newBuilder()
-                        .setInstance(getInstance(instance))
-                        .build())
-                .await()
-        Unit
+    override suspend fun suspendVm(instance: GoogleCloudInstance): Operation = mutate {
+        myClients.restClient.suspendInstance(instance.zone, instance.id)
+    }
+
+    override suspend fun resumeVm(instance: GoogleCloudInstance): Operation = mutate {
+        myClients.restClient.resumeInstance(instance.zone, instance.id)
+    }
+
+    override suspend fun setUserData(instance: GoogleCloudInstance, userData: CloudInstanceUserData): Operation = coroutineScope {
+        // Current metadata fingerprint is required to update it
+        val metadata = read {
+            instanceClient.getInstanceCallable()
+                    .futureCall(GetInstanceHttpRequest.newBuilder()
+                            .setInstance(getInstance(instance))
+                            .setFields("metadata")
+                            .build())
+                    .await()
+                    .metadata
+        }
+
+        val items = metadata.itemsList.filter {
+            it.key != GoogleConstants.TAG_DATA && it.key != GoogleConstants.TAG_POOL
+        } + Items.newBuilder()
+                .setKey(GoogleConstants.TAG_DATA)
+                .setValue(userData.serialize())
+                .build()
+
+        mutate {
+            instanceClient.setMetadataInstanceCallable()
+                    .futureCall(SetMetadataInstanceHttpRequest.newBuilder()
+                            .setInstance(getInstance(instance))
+                            .setMetadataResource(Metadata.newBuilder()
+                                    .setFingerprint(metadata.fingerprint)
+                                    .addAllItems(items)
+                                    .build())
+                            .build())
+                    .await()
+        }
+    }
+
+    override suspend fun deleteVm(instance: GoogleCloudInstance, cleanup: Boolean): Operation = coroutineScope {
+        val kind = if (cleanup) GoogleApiRateLimiter.CallKind.Cleanup else GoogleApiRateLimiter.CallKind.Mutation
+        myClients.rateLimiter.call(kind) {
+            instanceClient.deleteInstanceCallable()
+                    .futureCall(DeleteInstanceHttpRequest.newBuilder()
+                            .setInstance(getInstance(instance))
+                            .build())
+                    .await()
+        }
     }
 
+    private suspend fun <T> read(block: suspend () -> T) =
+            myClients.rateLimiter.call(GoogleApiRateLimiter.CallKind.Read, block)
+
+    /**
+     * Reads all values of a listing, each page is charged to the rate limiter separately.
+     */
+    private suspend fun <Q, R, T, P : AbstractPage<Q, R, T, P>> readAll(firstPage: suspend () -> P): List<T> {
+        val values = arrayListOf<T>()
+        myClients.rateLimiter.readPages(firstPage) { page -> values.addAll(page.values) }
+        return values
+    }
+
+    private suspend fun <T> mutate(block: suspend () -> T) =
+            myClients.rateLimiter.call(GoogleApiRateLimiter.CallKind.Mutation, block)
+
     private fun getInstance(instance: GoogleCloudInstance): String {
         return ProjectZoneInstanceName.format(instance.id, myProjectId, instance.zone)
     }
 
-    override fun checkImage(image: GoogleCloudImage) = runBlocking {
-        val errors = image.handler.checkImage(image)
-        errors.map { TypedCloudErrorInfo.fromException(it) }.toTypedArray()
+    // Blocking variants serve CloudApiConnector callers, the update task uses the asynchronous ones
+    override fun checkImage(image: GoogleCloudImage): Array<TypedCloudErrorInfo> = runBlocking {
+        val lookups = myLookups ?: GoogleSourceLookups(this, this@GoogleApiConnectorImpl)
+        checkImage(image, lookups)
+    }
+
+    override fun checkImages(images: MutableCollection<GoogleCloudImage>) = runBlocking {
+        checkImagesInCycle(images)
+    }
+
+    override fun checkImagesAsync(images: MutableCollection<GoogleCloudImage>):
+            CompletableFuture<Map<GoogleCloudImage, Array<TypedCloudErrorInfo>>> = myClients.scope.future {
+        checkImagesInCycle(images)
+    }
+
+    private suspend fun checkImagesInCycle(images: Collection<GoogleCloudImage>) = coroutineScope {
+        // Lookups are shared by images within the cycle and reused until the next one
+        val lookups = GoogleSourceLookups(myClients.scope, this@GoogleApiConnectorImpl)
+        myLookups = lookups
+        images.map { image ->
+            async { image to checkImage(image, lookups) }
+        }.awaitAll().toMap(hashMapOf<GoogleCloudImage, Array<TypedCloudErrorInfo>>())
+    }
+
+    private suspend fun checkImage(image: GoogleCloudImage, lookups: GoogleSourceLookups): Array<TypedCloudErrorInfo> {
+        val errors = try {
+            image.handler.checkImage(image, lookups)
+        } catch (e: Exception) {
+            LOG.infoAndDebugDetails("Failed to check image ${image.name}: ${e.message}", e)
+            listOf(e)
+        }
+        return errors.map { TypedCloudErrorInfo.fromException(it) }.toTypedArray()
     }
 
     override fun checkInstance(instance: GoogleCloudInstance): Array<TypedCloudErrorInfo> = emptyArray()
 
-    override fun checkStartOperation(instance: GoogleCloudInstance): Array<TypedCloudErrorInfo> = runBlocking {
-        if (instance.startOperationId == null || myProjectId == null) {
-            return@runBlocking emptyArray()
+    override fun checkStartOperation(instance: GoogleCloudInstance): Array<TypedCloudErrorInfo> {
+        // Errors are collected by the operation tracker when the insert operation is done
+        return instance.startErrors
+    }
+
+    override suspend fun awaitOperation(operation: Operation): Array<TypedCloudErrorInfo> {
+        val result = myClients.operationTracker.awaitDone(operation)
+        val errors = result.error?.errorsList
+        if (errors.isNullOrEmpty() && result.httpErrorStatusCode == null) {
+            return emptyArray()
         }
 
-        val res = getOperation(instance.startOperationId!!, myProjectId!!, instance.zone) ?: return@runBlocking emptyArray()
+        return errors?.map { e ->
+            TypedCloudErrorInfo(result.operationType, generalDescriptionFromError(e))
+        }?.toTypedArray() ?: arrayOf(
+            TypedCloudErrorInfo("Failed to retrieve the errors, check Google Cloud Operations for more info")
+        )
+    }
 
-        if (res.httpErrorMessage != null || res.httpErrorStatusCode != null) {
-            res.error?.errorsList?.map { e ->
-                TypedCloudErrorInfo(
-                    res.operationType,
-                    generalDescriptionFromError(e)
-                )
-            }?.toTypedArray() ?: arrayOf(
-                TypedCloudErrorInfo("Failed to retrieve the errors, check Google Cloud Operations for more info")
-            )
-        } else {
-            emptyArray()
+    override suspend fun imageExists(project: String?, image: String) = coroutineScope {
+        val projectName = if (project.isNullOrBlank()) myProjectId else project
+        exists {
+            imageClient.getImageCallable()
+                    .futureCall(GetImageHttpRequest.newBuilder()
+                            .setImage(ProjectGlobalImageName.format(image, projectName))
+                            .build())
+                    .await()
         }
     }
 
-    override suspend fun getImages(project: String?) = coroutineScope {
+    override suspend fun imageFamilyExists(project: String?, family: String) = coroutineScope {
         val projectName = if (project.isNullOrBlank()) myProjectId else project
-        val images = imageClient.listImagesPagedCallable()
-                .futureCall(ListImagesHttpRequest.newBuilder()
-                        .setProject(ProjectName.format(projectName))
-                        .build())
-                .await()
+        exists {
+            imageClient.getFromFamilyImageCallable()
+                    .futureCall(GetFromFamilyImageHttpRequest.newBuilder()
+                            .setFamily(ProjectGlobalImageFamilyName.format(family, projectName))
+                            .build())
+                    .await()
+        }
+    }
+
+    override suspend fun templateExists(template: String) = coroutineScope {
+        exists {
+            instanceTemplateClient.getInstanceTemplateCallable()
+                    .futureCall(GetInstanceTemplateHttpRequest.newBuilder()
+                            .setInstanceTemplate(ProjectGlobalInstanceTemplateName.format(template, myProjectId))
+                            .build())
+                    .await()
+        }
+    }
 
-        images.iterateAll()
-                .map { it.name to formattedName(it.name, it.description) }
-                .sortedWith(compareBy(comparator) { it.second })
-                .associate { it.first to it.second }
+    private suspend fun exists(block: suspend () -> Any?): Boolean {
+        return try {
+            read(block)
+            true
+        } catch (e: NotFoundException) {
+            false
+        }
+    }
+
+    override suspend fun getImages(project: String?) = coroutineScope {
+        val projectName = if (project.isNullOrBlank()) myProjectId else project
+        myCache.get("images", projectName) {
+            listImages(projectName)
+                    .map { it.name to formattedName(it.name, it.description) }
+                    .sortedNaturally { it.second }
+                    .associate { it.first to it.second }
+        }
     }
 
     override suspend fun getImageFamilies(project: String?) = coroutineScope {
         val projectName = if (project.isNullOrBlank()) myProjectId else project
-        val images = imageClient.listImagesPagedCallable()
-                .futureCall(ListImagesHttpRequest.newBuilder()
-                        .setProject(ProjectName.format(projectName))
-                        .build())
-                .await()
+        myCache.get("imageFamilies", projectName) {
+            listImages(projectName)
+                    .mapNotNull { it.family }
+                    .distinct()
+                    .sorted()
+        }
+    }
 
-        images.iterateAll()
-                .filter { it.family != null }
-                .map { it.family }
-                .distinct()
-                .sorted()
+    /**
+     * Lists images of the project, the result is shared by images and image families requests.
+     */
+    private suspend fun listImages(projectName: String?): List<ImageSummary> = myCache.get("imageList", projectName) {
+        val images = readAll {
+            imageClient.listImagesPagedCallable()
+                    .futureCall(ListImagesHttpRequest.newBuilder()
+                            .setProject(ProjectName.format(projectName))
+                            .build(), myClients.listingContext("images.list"))
+                    .await().page
+        }
+
+        images.map { ImageSummary(it.name, it.description, it.family) }
     }
 
     override suspend fun getTemplates() = coroutineScope {
-        val templates = instanceTemplateClient.listInstanceTemplatesPagedCallable()
-                .futureCall(ListInstanceTemplatesHttpRequest.newBuilder()
-                        .setProject(ProjectName.format(myProjectId))
-                        .build())
-                .await()
+        myCache.get("templates", myProjectId) {
+            val templates = readAll {
+                instanceTemplateClient.listInstanceTemplatesPagedCallable()
+                        .futureCall(ListInstanceTemplatesHttpRequest.newBuilder()
+                                .setProject(ProjectName.format(myProjectId))
+                                .build(), myClients.listingContext("instanceTemplates.list"))
+                        .await().page
+            }
 
-        templates.iterateAll()
-                .map { it.name to formattedName(it.name, it.description) }
-                .sortedWith(compareBy(comparator) { it.second })
-                .associate { it.first to it.second }
+            templates
+                    .map { it.name to formattedName(it.name, it.description) }
+                    .sortedNaturally { it.second }
+                    .associate { it.first to it.second }
+        }
     }
 
     override suspend fun getZones() = coroutineScope {
-        val zones = zoneClient.listZonesPagedCallable()
-                .futureCall(ListZonesHttpRequest.newBuilder()
-                        .setProject(ProjectName.format(myProjectId))
-                        .build())
-                .await()
+        myCache.get("zones", myProjectId) {
+            val zones = readAll {
+                zoneClient.listZonesPagedCallable()
+                        .futureCall(ListZonesHttpRequest.newBuilder()
+                                .setProject(ProjectName.format(myProjectId))
+                                .build(), myClients.listingContext("zones.list"))
+                        .await().page
+            }
 
-        zones.iterateAll()
-                .map { zone ->
-                    val region = ProjectRegionName.parse(zone.region).region
-                    zone.name to listOf(formattedName(zone.name, zone.description), region)
-                }
-                .sortedWith(compareBy(comparator) { it.second.first() })
-                .associate { it.first to it.second }
+            zones
+                    .map { zone ->
+                        val region = ProjectRegionName.parse(zone.region).region
+                        zone.name to listOf(formattedName(zone.name, zone.description), region)
+                    }
+                    .sortedNaturally { it.second.first() }
+                    .associate { it.first to it.second }
+        }
     }
 
     override suspend fun getMachineTypes(zone: String) = coroutineScope {
-        val machineTypes = machineTypeClient.listMachineTypesPagedCallable()
-                .futureCall(ListMachineTypesHttpRequest.newBuilder()
-                        .setZone(ProjectZoneName.format(myProjectId, zone))
-                        .build())
-                .await()
+        myCache.get("machineTypes", "$myProjectId/$zone") {
+            val machineTypes = readAll {
+                machineTypeClient.listMachineTypesPagedCallable()
+                        .futureCall(ListMachineTypesHttpRequest.newBuilder()
+                                .setZone(ProjectZoneName.format(myProjectId, zone))
+                                .build(), myClients.listingContext("machineTypes.list"))
+                        .await().page
+            }
 
-        machineTypes.iterateAll()
-                .map { it.name to formattedName(it.name, it.description) }
-                .sortedWith(compareBy(comparator) { it.second })
-                .associate { it.first to it.second }
+            machineTypes
+                    .map { it.name to formattedName(it.name, it.description) }
+                    .sortedNaturally { it.second }
+                    .associate { it.first to it.second }
+        }
     }
 
     private suspend fun <T> withVpcProjects(block: suspend (String) -> List<T>): List<T> {
         val items = mutableListOf<T>()
 
         myProjectId?.let { items.addAll(block(it)) }
-        getVpcHostProjects()?.let { items.addAll(block(it.name)) }
+        // Project without a shared VPC host gets an empty response
+        getVpcHostProjects()?.name?.let { items.addAll(block(it)) }
 
         return items
     }
 
-    private suspend fun getVpcHostProjects(): Project? {
-        return projectClient.xpnHostProjectCallable.futureCall(
-            GetXpnHostProjectHttpRequest.newBuilder()
-                .setProject(ProjectName.format(myProjectId))
-                .build()
-        ).await()
+    private suspend fun getVpcHostProjects(): Project? = myCache.get("xpnHost", myProjectId) {
+        read {
+            projectClient.xpnHostProjectCallable.futureCall(
+                GetXpnHostProjectHttpRequest.newBuilder()
+                    .setProject(ProjectName.format(myProjectId))
+                    .build()
+            ).await()
+        }
     }
 
     override suspend fun getNetworks() = coroutineScope {
         withVpcProjects { getNetworksForProject(it) }
             .map { it.name to formattedName(it.name, it.description) }
-            .sortedWith(compareBy(comparator) { it.second })
+            .sortedNaturally { it.second }
             .associate { it.first to it.second }
     }
 
-    private suspend fun getNetworksForProject(project: String): List<Network> {
+    private suspend fun getNetworksForProject(project: String): List<Network> = myCache.get("networks", project) {
         try {
-            val networks = networkClient.listNetworksPagedCallable()
-                .futureCall(
-                    ListNetworksHttpRequest.newBuilder()
-                        .setProject(ProjectName.format(project))
-                        .build()
-                )
-                .await()
+            val networks = readAll {
+                networkClient.listNetworksPagedCallable()
+                    .futureCall(
+                        ListNetworksHttpRequest.newBuilder()
+                            .setProject(ProjectName.format(project))
+                            .build(),
+                        myClients.listingContext("networks.list")
+                    )
+                    .await().page
+            }
 
-            return networks.iterateAll().toList()
+            networks
         } catch (e: PermissionDeniedException) {
             if (e.statusCode.code == StatusCode.Code.PERMISSION_DENIED) {
-                return emptyList()
+                emptyList<Network>()
             } else {
                 throw RuntimeException(e.cause)
             }
@@ -456,23 +716,26 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
                 val network = ProjectGlobalNetworkName.parse(subNetwork.network).network
                 subNetwork.name to listOf(formattedName(subNetwork.name, subNetwork.description), network)
             }
-            .sortedWith(compareBy(comparator) { it.second.first() })
+            .sortedNaturally { it.second.first() }
             .associate { it.first to it.second }
     }
 
-    private suspend fun getSubnetsForProject(project: String?, region: String): List<Subnetwork> {
+    private suspend fun getSubnetsForProject(project: String?, region: String): List<Subnetwork> = myCache.get("subnets", "$project/$region") {
         try {
-            val subNetworks = subNetworkClient.listSubnetworksPagedCallable()
-                .futureCall(
-                    ListSubnetworksHttpRequest.newBuilder()
-                        .setRegion(ProjectRegionName.format(project, region))
-                        .build()
-                ).await()
-
-            return subNetworks.iterateAll().toList()
+            val subNetworks = readAll {
+                subNetworkClient.listSubnetworksPagedCallable()
+                    .futureCall(
+                        ListSubnetworksHttpRequest.newBuilder()
+                            .setRegion(ProjectRegionName.format(project, region))
+                            .build(),
+                        myClients.listingContext("subnetworks.list")
+                    ).await().page
+            }
+
+            subNetworks
         } catch (e: PermissionDeniedException) {
             if (e.statusCode.code == StatusCode.Code.PERMISSION_DENIED) {
-                return emptyList()
+                emptyList<Subnetwork>()
             } else {
                 throw RuntimeException(e.cause)
             }
@@ -480,16 +743,20 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
     }
 
     override suspend fun getDiskTypes(zone: String) = coroutineScope {
-        val diskTypes = diskTypeClient.listDiskTypesPagedCallable()
-                .futureCall(ListDiskTypesHttpRequest.newBuilder()
-                        .setZone(ProjectZoneName.format(myProjectId, zone))
-                        .build())
-                .await()
+        myCache.get("diskTypes", "$myProjectId/$zone") {
+            val diskTypes = readAll {
+                diskTypeClient.listDiskTypesPagedCallable()
+                        .futureCall(ListDiskTypesHttpRequest.newBuilder()
+                                .setZone(ProjectZoneName.format(myProjectId, zone))
+                                .build(), myClients.listingContext("diskTypes.list"))
+                        .await().page
+            }
 
-        diskTypes.iterateAll()
-                .map { it.name to formattedName(it.name, it.description) }
-                .sortedWith(compareBy(comparator) { it.second })
-                .associate { it.first to it.second }
+            diskTypes
+                    .map { it.name to formattedName(it.name, it.description) }
+                    .sortedNaturally { it.second }
+                    .associate { it.first to it.second }
+        }
     }
 
     override fun <R : AbstractInstance?> fetchInstances(image: GoogleCloudImage): MutableMap<String, R> {
@@ -497,51 +764,62 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
         return instances[image] as MutableMap<String, R>
     }
 
-    override fun <R : AbstractInstance?> fetchInstances(images: MutableCollection<GoogleCloudImage>)
+    override fun <R : AbstractInstance?> fetchInstances(images: MutableCollection<GoogleCloudImage>) = runBlocking {
+        loadInstances<R>(images)
+    }
+
+    override fun <R : AbstractInstance?> fetchInstancesAsync(images: MutableCollection<GoogleCloudImage>) = myClients.scope.future {
+        loadInstances<R>(images)
+    }
+
+    private suspend fun <R : AbstractInstance?> loadInstances(images: Collection<GoogleCloudImage>)
             : MutableMap<GoogleCloudImage, MutableMap<String, R>> {
-        val map = mutableMapOf<String, MutableList<Instance>>()
-        instanceClient.aggregatedListInstances(ProjectName.of(myProjectId))
-                .iterateAll()
-                .flatMap { it.instancesList ?: emptyList() }
-                .forEach {
-                    val metadata = it.metadata.itemsList?.associateBy(
-                            { items -> items.key },
-                            { items -> items.value })
-                            ?: emptyMap()
-
-                    if (metadata[GoogleConstants.TAG_SERVER] != myServerId) return@forEach
-                    if (metadata[GoogleConstants.TAG_PROFILE] != myProfileId) return@forEach
-                    if (metadata[GoogleConstants.TAG_DATA].isNullOrEmpty()) return@forEach
-                    metadata[GoogleConstants.TAG_SOURCE]?.let { sourceId ->
-                        val list = map.getOrPut(sourceId) { mutableListOf() }
-                        list.add(it)
-                    }
-                }
+        // Instances created before labels were introduced could be found only by a full scan,
+        // they get labels on the first scan and the following cycles use the filtered listing
+        val legacyScan = myLegacyScanRequired
+        var legacyInstances = 0
+
+        // Instances could stay in a zone which is no longer used by the image settings
+        val zones = images.flatMapTo(sortedSetOf()) { image ->
+            image.instances.map { it.zone } + image.imageDetails.zone
+        }
 
+        // Instances in transition need a fresh snapshot to let the fast polling observe changes
+        val inTransition = images.any { image -> image.instances.any { it.status in TRANSITION_STATUSES } }
+        val notBefore = if (inTransition) {
+            maxOf(myLastLaunchTime, System.currentTimeMillis() - TRANSITION_SNAPSHOT_MAX_AGE_MS)
+        } else {
+            myLastLaunchTime
+        }
+
+        val imagesBySource = images.associateBy { it.imageDetails.sourceId }
         val result = hashMapOf<GoogleCloudImage, MutableMap<String, R>>()
+        images.forEach { result[it] = hashMapOf() }
+
+        // Snapshot contains only instances of the server, so they are assigned to images in a single pass
+        mySnapshots.getInstances(myServerId, mySubscriberId, zones, legacyScan, notBefore).forEach { instance ->
+            if (instance.getProperty(GoogleConstants.TAG_PROFILE) != myProfileId) return@forEach
+            if (!instance.isLabeled) {
+                legacyInstances++
+                backfillLabels(instance)
+            }
+            val image = imagesBySource[instance.getProperty(GoogleConstants.TAG_SOURCE)] ?: return@forEach
 
-        for (image in images) {
-            val instances = hashMapOf<String, R>()
-            map[image.imageDetails.sourceId]?.let { foundInstances ->
-                foundInstances.forEach {
-                    val name = it.name
-                    val zone = ProjectZoneName.parse(it.zone).zone
-                    @Suppress("UNCHECKED_CAST")
-                    instances[name] = GoogleInstance(it, zone) as R
-
-                    if ("TERMINATED" == it.status) {
-                        GlobalScope.launch(image.coroutineContext) {
-                            try {
-                                LOG.info("Removing terminated instance $name")
-                                deleteVm(GoogleCloudInstance(image, it.name, zone))
-                            } catch (e: Exception) {
-                                LOG.infoAndDebugDetails("Failed to remove instance $name", e)
-                            }
-                        }
-                    }
-                }
+            @Suppress("UNCHECKED_CAST")
+            result[image]!![instance.name] = instance as R
+
+            // Stopped instances of the warm pool are kept until they are taken or expired,
+            // suspended instances are kept while terminated ones lost their state and are removed
+            val pooled = instance.getProperty(GoogleConstants.TAG_POOL) != null
+            val details = image.imageDetails
+            if (instance.isTerminated && (details.behaviour.isDeleteAfterStop || details.suspendOnStop) && !pooled) {
+                image.removeTerminatedInstance(instance.name, instance.getProperty(GoogleConstants.ZONE)!!)
             }
-            result[image] = instances
+        }
+
+        if (legacyScan && legacyInstances == 0) {
+            LOG.info("No unlabeled instances found for profile $myProfileId, switching to filtered instances listing")
+            myLegacyScanRequired = false
         }
 
         return result
@@ -555,10 +833,6 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
         }
     }
 
-    private fun getOperation(operationId: String, projectId: String, zone: String): Operation? {
-        return operationsClient.getZoneOperation(ProjectZoneOperationName.of(operationId, projectId, zone))
-    }
-
     fun setServerId(serverId: String?) {
         myServerId = serverId
     }
@@ -567,83 +841,63 @@ class GoogleApiConnectorImpl : GoogleApiConnector {
         myProfileId = profileId
     }
 
-    private val operationsClient: ZoneOperationClient by lazy {
-        ZoneOperationClient.create(ZoneOperationSettings.newBuilder()
-            .setCredentialsProvider(getCredentialsProvider { ZoneSettings.getDefaultServiceScopes() })
-            .build())
-    }
+    private val projectClient: ProjectClient
+        get() = myClients.projectClient
 
-    private val projectClient: ProjectClient by lazy {
-        ProjectClient.create(ProjectSettings.newBuilder()
-                .setCredentialsProvider(getCredentialsProvider { ProjectSettings.getDefaultServiceScopes() })
-                .build())
-    }
+    private val instanceClient: InstanceClient
+        get() = myClients.instanceClient
 
-    private val instanceClient: InstanceClient by lazy {
-        InstanceClient.create(InstanceSettings.newBuilder()
-                .setCredentialsProvider(getCredentialsProvider { InstanceSettings.getDefaultServiceScopes() })
-                .build())
-    }
+    private val imageClient: ImageClient
+        get() = myClients.imageClient
 
-    private val imageClient: ImageClient by lazy {
-        ImageClient.create(ImageSettings.newBuilder()
-                .setCredentialsProvider(getCredentialsProvider { ImageSettings.getDefaultServiceScopes() })
-                .build())
-    }
+    private val zoneClient: ZoneClient
+        get() = myClients.zoneClient
 
-    private val zoneClient: ZoneClient by lazy {
-        ZoneClient.create(ZoneSettings.newBuilder()
-                .setCredentialsProvider(getCredentialsProvider { ZoneSettings.getDefaultServiceScopes() })
-                .build())
-    }
+    private val machineTypeClient: MachineTypeClient
+        get() = myClients.machineTypeClient
 
-    private val machineTypeClient: MachineTypeClient by lazy {
-        MachineTypeClient.create(MachineTypeSettings.newBuilder()
-                .setCredentialsProvider(getCredentialsProvider { MachineTypeSettings.getDefaultServiceScopes() })
-                .build())
-    }
+    private val networkClient: NetworkClient
+        get() = myClients.networkClient
 
-    private val networkClient: NetworkClient by lazy {
-        NetworkClient.create(NetworkSettings.newBuilder()
-                .setCredentialsProvider(getCredentialsProvider { NetworkSettings.getDefaultServiceScopes() })
-                .build())
-    }
+    private val subNetworkClient: SubnetworkClient
+        get() = myClients.subNetworkClient
 
-    private val subNetworkClient: SubnetworkClient by lazy {
-        SubnetworkClient.create(SubnetworkSettings.newBuilder()
-                .setCredentialsProvider(getCredentialsProvider { SubnetworkSettings.getDefaultServiceScopes() })
-                .build())
-    }
+    private val diskTypeClient: DiskTypeClient
+        get() = myClients.diskTypeClient
 
-    private val diskTypeClient: DiskTypeClient by lazy {
-        DiskTypeClient.create(DiskTypeSettings.newBuilder()
-                .setCredentialsProvider(getCredentialsProvider { DiskTypeSettings.getDefaultServiceScopes() })
-                .build())
-    }
+    private val instanceTemplateClient: InstanceTemplateClient
+        get() = myClients.instanceTemplateClient
 
-    private val instanceTemplateClient: InstanceTemplateClient by lazy {
-        InstanceTemplateClient.create(InstanceTemplateSettings.newBuilder()
-                .setCredentialsProvider(getCredentialsProvider { InstanceTemplateSettings.getDefaultServiceScopes() })
-                .build())
+    /**
+     * Sorts items in natural order of the selected names, each name is split into chunks only once.
+     */
+    private fun <T> Iterable<T>.sortedNaturally(selector: (T) -> String): List<T> {
+        return map { comparator.getCollationKey(selector(it)) to it }
+                .sortedBy { it.first }
+                .map { it.second }
     }
 
-    private fun getCredentialsProvider(getScopes: () -> List<String>): CredentialsProvider {
-        val credentials = if (myCredentials.createScopedRequired()) {
-            myCredentials.createScoped(getScopes())
-        } else {
-            myCredentials
-        }
-        return FixedCredentialsProvider.create(credentials)
-    }
+    private class ImageSummary(val name: String, val description: String?, val family: String?)
 
     companion object {
         private val LOG = Logger.getInstance(GoogleApiConnectorImpl::class.java.name)
+        private const val TRANSITION_SNAPSHOT_MAX_AGE_MS = 3000L
+        private val TRANSITION_STATUSES = setOf(InstanceStatus.SCHEDULED_TO_START, InstanceStatus.STARTING,
+                InstanceStatus.STOPPING, InstanceStatus.SCHEDULED_TO_STOP)
 
         val REQUIRED_PERMISSIONS = listOf(
+                "compute.images.get",
+                "compute.images.getFromFamily",
                 "compute.images.list",
                 "compute.instances.create",
+                "compute.instances.get",
                 "compute.instances.list",
+                "compute.instances.resume",
+                "compute.instances.setLabels",
                 "compute.instances.setMetadata",
+                "compute.instances.start",
+                "compute.instances.stop",
+                "compute.instances.suspend",
                 "compute.machineTypes.list",
                 "compute.diskTypes.list",
                 "compute.networks.list",
@@ -0,0 +1,121 @@
+package jetbrains.buildServer.clouds.google.connector
+
+import com.google.api.client.googleapis.util.Utils
+import com.google.api.client.http.javanet.NetHttpTransport
+import com.google.api.client.json.GenericJson
+import com.google.api.gax.core.FixedExecutorProvider
+import com.google.auth.oauth2.GoogleCredentials
+import com.google.cloud.ServiceOptions
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.util.executors.ExecutorsFactory
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Server-wide registry of Google API clients.
+ *
+ * Connectors created for the same credentials and project share the API clients,
+ * HTTP transport and executor pool, all clients of a project share the API rate limiter. Clients which are no longer referenced are closed
+ * after the idle timeout.
+ */
+class GoogleApiConnectorRegistry(private val metrics: GoogleApiMetrics) {
+
+    private val myClients = ConcurrentHashMap<String, GoogleApiClients>()
+    private val myRateLimiters = ConcurrentHashMap<String, GoogleApiRateLimiter>()
+    private val myTransport = NetHttpTransport()
+    private val myExecutor = ExecutorsFactory.newFixedScheduledDaemonExecutor("Google API clients",
+            TeamCityProperties.getInteger(EXECUTOR_THREADS_PROPERTY, DEFAULT_EXECUTOR_THREADS))
+    private val myExecutorProvider = FixedExecutorProvider.create(myExecutor)
+
+    init {
+        myExecutor.scheduleWithFixedDelay({ closeIdleClients() }, 1, 1, TimeUnit.MINUTES)
+    }
+
+    /**
+     * Creates a connector for the service account key.
+     */
+    fun createConnector(accessKey: String): GoogleApiConnectorImpl {
+        val json = accessKey.trim()
+        val projectId = json.byteInputStream().use {
+            val parser = Utils.getDefaultJsonFactory().createJsonParser(it)
+            parser.parse(GenericJson::class.java)["project_id"] as String?
+        }
+
+        val key = "${fingerprint(json)}:$projectId"
+        return GoogleApiConnectorImpl(acquire(key) {
+            val credentials = json.byteInputStream().use { GoogleCredentials.fromStream(it) }
+            createClients(key, credentials, projectId)
+        }, this)
+    }
+
+    /**
+     * Creates a connector for the application default credentials.
+     */
+    fun createConnector(): GoogleApiConnectorImpl {
+        val projectId = ServiceOptions.getDefaultProjectId()
+        val key = "$CREDENTIALS_ENVIRONMENT:$projectId"
+        return GoogleApiConnectorImpl(acquire(key) {
+            createClients(key, GoogleCredentials.getApplicationDefault(), projectId)
+        }, this)
+    }
+
+    internal fun release(clients: GoogleApiClients) {
+        clients.release()
+    }
+
+    private fun acquire(key: String, factory: () -> GoogleApiClients): GoogleApiClients {
+        // retain() is called under the map lock so that the idle cleanup could not close the clients in between
+        return myClients.compute(key) { _, existing ->
+            (existing ?: factory().apply {
+                LOG.debug("Created Google API clients for project $projectId")
+            }).retain()
+        }!!
+    }
+
+    private fun createClients(key: String, credentials: GoogleCredentials, projectId: String?) =
+            GoogleApiClients(key, credentials, projectId, myTransport, metrics, myExecutorProvider,
+                    myRateLimiters.computeIfAbsent(projectId ?: "") { GoogleApiRateLimiter(projectId) })
+
+    private fun closeIdleClients() {
+        val idleTimeout = TimeUnit.MINUTES.toMillis(TeamCityProperties.getLong(IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT_MIN))
+        val now = System.currentTimeMillis()
+        myClients.values.forEach { clients ->
+            myClients.computeIfPresent(clients.key) { _, existing ->
+                if (existing.references <= 0 && now - existing.lastReleased > idleTimeout) {
+                    LOG.debug("Closing idle Google API clients for project ${existing.projectId}")
+                    existing.close()
+                    null
+                } else {
+                    existing
+                }
+            }
+        }
+    }
+
+    fun dispose() {
+        myClients.values.forEach { it.close() }
+        myClients.clear()
+        myExecutor.shutdownNow()
+        try {
+            myTransport.shutdown()
+        } catch (e: Exception) {
+            LOG.debug("Failed to shutdown HTTP transport: ${e.message}", e)
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(GoogleApiConnectorRegistry::class.java.name)
+        private const val CREDENTIALS_ENVIRONMENT = "environment"
+        private const val EXECUTOR_THREADS_PROPERTY = "teamcity.cloud.google.api.threads"
+        private const val DEFAULT_EXECUTOR_THREADS = 4
+        private const val IDLE_TIMEOUT_PROPERTY = "teamcity.cloud.google.api.idleTimeoutMinutes"
+        private const val DEFAULT_IDLE_TIMEOUT_MIN = 10L
+
+        private fun fingerprint(value: String): String {
+            val digest = MessageDigest.getInstance("SHA-256").digest(value.toByteArray(Charsets.UTF_8))
+            return digest.joinToString("") { String.format("%02x", it) }
+        }
+    }
+}
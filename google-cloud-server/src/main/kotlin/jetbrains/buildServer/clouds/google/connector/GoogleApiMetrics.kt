@@ -0,0 +1,176 @@
+package jetbrains.buildServer.clouds.google.connector
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.clouds.google.utils.LatencyHistogram
+import java.lang.management.ManagementFactory
+import java.net.URI
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import javax.management.ObjectName
+
+/**
+ * Statistics of Google API calls made by the plugin.
+ *
+ * Calls are grouped by project and API method, e.g. `instances.insert`, the statistics
+ * are exposed through the metrics controller and the [GoogleApiMetricsMXBean].
+ */
+class GoogleApiMetrics : GoogleApiMetricsMXBean {
+
+    private val myMethods = ConcurrentHashMap<MethodKey, MethodStats>()
+    private val myObjectName = ObjectName(OBJECT_NAME)
+
+    init {
+        try {
+            val server = ManagementFactory.getPlatformMBeanServer()
+            if (!server.isRegistered(myObjectName)) {
+                server.registerMBean(this, myObjectName)
+            }
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Failed to register Google API metrics MBean", e)
+        }
+    }
+
+    /**
+     * Returns statistics of the API method called by the request.
+     */
+    fun forRequest(httpMethod: String, url: String): MethodStats {
+        return myMethods.computeIfAbsent(describe(httpMethod, url)) { MethodStats() }
+    }
+
+    /**
+     * Returns statistics of the API method called in the project, e.g. `instances.insert`.
+     */
+    fun forMethod(project: String?, method: String): MethodStats {
+        return myMethods.computeIfAbsent(MethodKey(project ?: UNKNOWN, method)) { MethodStats() }
+    }
+
+    val methods: Map<MethodKey, MethodStats>
+        get() = myMethods
+
+    override val callCounts: Map<String, Long>
+        get() = collect { it.calls.get() }
+
+    override val errorCounts: Map<String, Long>
+        get() = collect { stats -> stats.errors.values.fold(0L) { sum, count -> sum + count.get() } }
+
+    override val latencyP50: Map<String, Long>
+        get() = collect { it.latency.percentile(0.5) }
+
+    override val latencyP95: Map<String, Long>
+        get() = collect { it.latency.percentile(0.95) }
+
+    override val requestBytes: Map<String, Long>
+        get() = collect { it.requestBytes.get() }
+
+    override val responseBytes: Map<String, Long>
+        get() = collect { it.responseBytes.get() }
+
+    override val errorsByStatusCode: Map<String, Long>
+        get() = myMethods.entries
+                .flatMap { (key, stats) -> stats.errors.map { (code, count) -> "$key:$code" to count.get() } }
+                .toMap(sortedMapOf())
+
+    private fun collect(value: (MethodStats) -> Long): Map<String, Long> {
+        return myMethods.entries.associateTo(sortedMapOf()) { (key, stats) -> key.toString() to value(stats) }
+    }
+
+    fun dispose() {
+        try {
+            val server = ManagementFactory.getPlatformMBeanServer()
+            if (server.isRegistered(myObjectName)) {
+                server.unregisterMBean(myObjectName)
+            }
+        } catch (e: Exception) {
+            LOG.debug("Failed to unregister Google API metrics MBean: ${e.message}", e)
+        }
+    }
+
+    data class MethodKey(val project: String, val method: String) {
+        override fun toString() = "$project/$method"
+    }
+
+    class MethodStats {
+        val calls = AtomicLong()
+        val latency = LatencyHistogram()
+        val requestBytes = AtomicLong()
+        val responseBytes = AtomicLong()
+        val errors = ConcurrentHashMap<Int, AtomicLong>()
+
+        fun recordError(statusCode: Int) {
+            errors.computeIfAbsent(statusCode) { AtomicLong() }.incrementAndGet()
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(GoogleApiMetrics::class.java.name)
+        private const val OBJECT_NAME = "jetbrains.buildServer.clouds.google:type=ApiMetrics"
+        private const val UNKNOWN = "unknown"
+        private val LOCATION_COLLECTIONS = setOf("zones", "regions")
+
+        /**
+         * Status code recorded for calls which failed without HTTP response.
+         */
+        const val IO_ERROR = 0
+
+        /**
+         * Converts a request into the project and API method name,
+         * e.g. `POST .../projects/p/zones/z/instances/i/stop` into `p` and `instances.stop`.
+         */
+        internal fun describe(httpMethod: String, url: String): MethodKey {
+            val uri = try {
+                URI(url)
+            } catch (e: Exception) {
+                return MethodKey(UNKNOWN, httpMethod.lowercase())
+            }
+
+            val segments = (uri.rawPath ?: "").split('/').filter { it.isNotEmpty() }
+            val projectIndex = segments.indexOf("projects")
+            if (projectIndex < 0 || projectIndex + 1 >= segments.size) {
+                return MethodKey(UNKNOWN, "${uri.host ?: UNKNOWN}.${httpMethod.lowercase()}")
+            }
+
+            // Resource manager uses custom methods, e.g. projects/p:testIamPermissions
+            val project = segments[projectIndex + 1].substringBefore(':')
+            val customMethod = segments[projectIndex + 1].substringAfter(':', "")
+            if (customMethod.isNotEmpty()) {
+                return MethodKey(project, "projects.$customMethod")
+            }
+
+            var path = segments.drop(projectIndex + 2).filter { it != "global" }
+            while (path.size >= 3 && path[0] in LOCATION_COLLECTIONS) {
+                path = path.drop(2)
+            }
+
+            val method = when {
+                path.isEmpty() -> "projects.${verb(httpMethod, true)}"
+                path[0] == "aggregated" && path.size > 1 -> "${path[1]}.aggregatedList"
+                path.size == 1 -> "${path[0]}.${verb(httpMethod, false)}"
+                path.size == 2 -> "${path[0]}.${verb(httpMethod, true)}"
+                path[1] == "family" -> "${path[0]}.getFromFamily"
+                else -> "${path[0]}.${path[2]}"
+            }
+
+            return MethodKey(project, method)
+        }
+
+        private fun verb(httpMethod: String, resource: Boolean) = when (httpMethod.uppercase()) {
+            "GET" -> if (resource) "get" else "list"
+            "POST" -> if (resource) "post" else "insert"
+            "PUT" -> "update"
+            else -> httpMethod.lowercase()
+        }
+    }
+}
+
+/**
+ * JMX view of the Google API call statistics keyed by `project/method`.
+ */
+interface GoogleApiMetricsMXBean {
+    val callCounts: Map<String, Long>
+    val errorCounts: Map<String, Long>
+    val errorsByStatusCode: Map<String, Long>
+    val latencyP50: Map<String, Long>
+    val latencyP95: Map<String, Long>
+    val requestBytes: Map<String, Long>
+    val responseBytes: Map<String, Long>
+}
@@ -0,0 +1,207 @@
+package jetbrains.buildServer.clouds.google.connector
+
+import com.google.api.client.http.HttpResponseException
+import com.google.api.gax.paging.AbstractPage
+import com.google.api.gax.rpc.ApiException
+import com.google.api.gax.rpc.StatusCode
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.delay
+import java.util.ArrayDeque
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Limits the rate of Google API calls made for a project.
+ *
+ * All calls take tokens from a single bucket, background cleanup calls take them only while the bucket
+ * is at least half full, so they yield to reads and launches under load. The concurrency of mutating calls
+ * is adjusted additively on success and halved on rate limit errors, which also pause all calls of the project
+ * for a jittered exponential backoff before the call is retried.
+ */
+class GoogleApiRateLimiter(private val projectId: String?) {
+
+    enum class CallKind { Read, Mutation, Cleanup }
+
+    private val myLock = Any()
+    private val myRate = TeamCityProperties.getInteger(RATE_PROPERTY, DEFAULT_RATE).coerceAtLeast(1).toDouble()
+    private val myBurst = TeamCityProperties.getInteger(BURST_PROPERTY, DEFAULT_BURST).coerceAtLeast(1).toDouble()
+    private val myMaxRetries = TeamCityProperties.getInteger(MAX_RETRIES_PROPERTY, DEFAULT_MAX_RETRIES)
+    private var myTokens = myBurst
+    private var myRefilledAt = System.nanoTime()
+    private var myPausedUntil = 0L
+    private val myMutations = AdaptiveLimit(
+            TeamCityProperties.getInteger(INITIAL_CONCURRENCY_PROPERTY, DEFAULT_INITIAL_CONCURRENCY),
+            TeamCityProperties.getInteger(MAX_CONCURRENCY_PROPERTY, DEFAULT_MAX_CONCURRENCY))
+
+    suspend fun <T> call(kind: CallKind, block: suspend () -> T): T {
+        var attempt = 0
+        while (true) {
+            acquireToken(kind)
+            val limited = kind != CallKind.Read
+            if (limited) myMutations.acquire()
+
+            try {
+                val result = block()
+                if (limited) myMutations.onSuccess()
+                return result
+            } catch (e: Throwable) {
+                if (e is CancellationException || !isRateLimitError(e) || attempt >= myMaxRetries) {
+                    throw e
+                }
+
+                attempt++
+                if (limited) myMutations.onRateLimited()
+                val backoff = backoff(attempt)
+                LOG.info("Rate limit exceeded for project $projectId, retrying $kind call in $backoff ms")
+                synchronized(myLock) {
+                    myPausedUntil = maxOf(myPausedUntil, System.nanoTime() + backoff * NANOS_IN_MILLI)
+                }
+            } finally {
+                if (limited) myMutations.release()
+            }
+        }
+    }
+
+    /**
+     * Reads pages of a listing one by one, each page is a separate API call charged to the limit.
+     */
+    suspend fun <Q, R, T, P : AbstractPage<Q, R, T, P>> readPages(firstPage: suspend () -> P, consume: (P) -> Unit) {
+        var page = call(CallKind.Read, firstPage)
+        consume(page)
+        while (page.hasNextPage()) {
+            val previous = page
+            page = call(CallKind.Read) { previous.nextPageAsync.await() }
+            consume(page)
+        }
+    }
+
+    private suspend fun acquireToken(kind: CallKind) {
+        val required = if (kind == CallKind.Cleanup) maxOf(1.0, myBurst * CLEANUP_RESERVE) else 1.0
+        while (true) {
+            val waitNanos = synchronized(myLock) {
+                val now = System.nanoTime()
+                myTokens = minOf(myBurst, myTokens + (now - myRefilledAt) * myRate / NANOS_IN_SECOND)
+                myRefilledAt = now
+
+                when {
+                    myPausedUntil - now > 0 -> myPausedUntil - now
+                    myTokens >= required -> {
+                        myTokens -= 1.0
+                        return
+                    }
+                    else -> ((required - myTokens) * NANOS_IN_SECOND / myRate).toLong()
+                }
+            }
+            delay(maxOf(waitNanos / NANOS_IN_MILLI, 1L))
+        }
+    }
+
+    private fun backoff(attempt: Int): Long {
+        val ceiling = minOf(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS shl minOf(attempt - 1, 16))
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1)
+    }
+
+    /**
+     * Concurrency limit with additive increase and multiplicative decrease.
+     */
+    private class AdaptiveLimit(initial: Int, max: Int) {
+        private val max = max.coerceAtLeast(1)
+        private var myLimit = initial.coerceIn(1, this.max).toDouble()
+        private var myInFlight = 0
+        private var myDecreasedAt = 0L
+        private val myWaiters = ArrayDeque<CompletableDeferred<Unit>>()
+
+        suspend fun acquire() {
+            val waiter = synchronized(this) {
+                if (myWaiters.isEmpty() && myInFlight < myLimit.toInt()) {
+                    myInFlight++
+                    return
+                }
+                CompletableDeferred<Unit>().apply { myWaiters.addLast(this) }
+            }
+
+            try {
+                waiter.await()
+            } catch (e: CancellationException) {
+                synchronized(this) {
+                    // The permit could be granted right before the cancellation
+                    if (!myWaiters.remove(waiter)) {
+                        myInFlight--
+                        dispatch()
+                    }
+                }
+                throw e
+            }
+        }
+
+        fun release() = synchronized(this) {
+            myInFlight--
+            dispatch()
+        }
+
+        fun onSuccess() = synchronized(this) {
+            myLimit = minOf(max.toDouble(), myLimit + 1.0 / myLimit)
+            dispatch()
+        }
+
+        fun onRateLimited() = synchronized(this) {
+            // Rejections of calls issued concurrently are counted as a single decrease
+            val now = System.currentTimeMillis()
+            if (now - myDecreasedAt >= DECREASE_INTERVAL_MS) {
+                myDecreasedAt = now
+                myLimit = maxOf(1.0, myLimit / 2)
+            }
+        }
+
+        private fun dispatch() {
+            while (myWaiters.isNotEmpty() && myInFlight < myLimit.toInt()) {
+                myInFlight++
+                myWaiters.removeFirst().complete(Unit)
+            }
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(GoogleApiRateLimiter::class.java.name)
+        private const val RATE_PROPERTY = "teamcity.cloud.google.api.rateLimit.requestsPerSecond"
+        private const val DEFAULT_RATE = 20
+        private const val BURST_PROPERTY = "teamcity.cloud.google.api.rateLimit.burst"
+        private const val DEFAULT_BURST = 40
+        private const val MAX_RETRIES_PROPERTY = "teamcity.cloud.google.api.rateLimit.maxRetries"
+        private const val DEFAULT_MAX_RETRIES = 5
+        private const val INITIAL_CONCURRENCY_PROPERTY = "teamcity.cloud.google.api.mutations.initialConcurrency"
+        private const val DEFAULT_INITIAL_CONCURRENCY = 8
+        private const val MAX_CONCURRENCY_PROPERTY = "teamcity.cloud.google.api.mutations.maxConcurrency"
+        private const val DEFAULT_MAX_CONCURRENCY = 32
+        private const val CLEANUP_RESERVE = 0.5
+        private const val INITIAL_BACKOFF_MS = 1000L
+        private const val MAX_BACKOFF_MS = 32000L
+        private const val DECREASE_INTERVAL_MS = 1000L
+        private const val NANOS_IN_MILLI = 1_000_000L
+        private const val NANOS_IN_SECOND = 1_000_000_000.0
+        private val RATE_LIMIT_REASONS = listOf("ratelimitexceeded", "rate limit exceeded", "rate_limit_exceeded")
+
+        /**
+         * Checks whether the call was rejected by the API rate limits rather than by resource quotas.
+         */
+        fun isRateLimitError(e: Throwable): Boolean {
+            return when (e) {
+                is ApiException -> when (e.statusCode.code) {
+                    StatusCode.Code.RESOURCE_EXHAUSTED -> true
+                    StatusCode.Code.PERMISSION_DENIED -> hasRateLimitReason(e.message)
+                    else -> false
+                }
+                is HttpResponseException -> e.statusCode == 429 ||
+                        e.statusCode == 403 && hasRateLimitReason(e.content)
+                else -> false
+            }
+        }
+
+        private fun hasRateLimitReason(message: String?): Boolean {
+            val text = message?.lowercase() ?: return false
+            return RATE_LIMIT_REASONS.any { text.contains(it) }
+        }
+    }
+}
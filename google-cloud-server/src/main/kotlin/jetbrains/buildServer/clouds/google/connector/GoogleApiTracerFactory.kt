@@ -0,0 +1,123 @@
+package jetbrains.buildServer.clouds.google.connector
+
+import com.google.api.gax.httpjson.HttpJsonCallContext
+import com.google.api.gax.rpc.ApiCallContext
+import com.google.api.gax.rpc.ApiException
+import com.google.api.gax.tracing.ApiTracer
+import com.google.api.gax.tracing.ApiTracerFactory
+import com.google.api.gax.tracing.NoopApiTracer
+import com.google.api.gax.tracing.SpanName
+import org.threeten.bp.Duration
+
+/**
+ * Records statistics of calls made by the generated Compute clients into [GoogleApiMetrics].
+ *
+ * Compute clients build HTTP requests internally, so their calls are observed through the GAX tracing hooks.
+ * Unary callables are traced inside the retry loop, so every traced operation is a single HTTP attempt.
+ * Paged callables are not traced at all, so listings pass a tracer in the call context via [newCallContext],
+ * and the retry loop reports each attempt to it.
+ * Tracers report attempts, latency and errors, but not request and response sizes.
+ */
+class GoogleApiTracerFactory(private val metrics: GoogleApiMetrics,
+                             private val projectId: String?) : ApiTracerFactory {
+
+    override fun newTracer(parent: ApiTracer, spanName: SpanName, operationType: ApiTracerFactory.OperationType): ApiTracer {
+        // Compute span names look like compute.instances/insert
+        val resource = spanName.clientName.substringAfterLast('.')
+        return OperationTracer(metrics.forMethod(projectId, "$resource.${spanName.methodName}"))
+    }
+
+    /**
+     * Creates a call context which records attempts of the API method, e.g. `zones.list`.
+     *
+     * The context is kept by the returned pages, so next pages are recorded as well.
+     */
+    fun newCallContext(method: String): ApiCallContext {
+        return HttpJsonCallContext.createDefault().withTracer(AttemptTracer(metrics.forMethod(projectId, method)))
+    }
+
+    private abstract class MeteredTracer(private val stats: GoogleApiMetrics.MethodStats) : ApiTracer {
+
+        @Volatile private var myStart = 0L
+
+        override fun inScope(): ApiTracer.Scope = NoopApiTracer.getInstance().inScope()
+
+        protected fun started() {
+            stats.calls.incrementAndGet()
+            myStart = System.nanoTime()
+        }
+
+        protected fun succeeded() {
+            stats.latency.record((System.nanoTime() - myStart) / NANOS_IN_MILLI)
+        }
+
+        protected fun failed(error: Throwable?) {
+            succeeded()
+            // HTTP-JSON status codes carry the HTTP status, other failures happened without a response
+            val statusCode = (error as? ApiException)?.statusCode?.transportCode as? Int
+            stats.recordError(statusCode ?: GoogleApiMetrics.IO_ERROR)
+        }
+
+        override fun operationSucceeded() {}
+
+        override fun operationCancelled() {}
+
+        override fun operationFailed(error: Throwable?) {}
+
+        override fun attemptStarted(attemptNumber: Int) {}
+
+        override fun attemptSucceeded() {}
+
+        override fun attemptCancelled() {}
+
+        override fun attemptFailed(error: Throwable?, delay: Duration?) {}
+
+        override fun attemptFailedRetriesExhausted(error: Throwable?) {}
+
+        override fun attemptPermanentFailure(error: Throwable?) {}
+
+        override fun connectionSelected(id: String?) {}
+
+        override fun lroStartFailed(error: Throwable?) {}
+
+        override fun lroStartSucceeded() {}
+
+        override fun responseReceived() {}
+
+        override fun requestSent() {}
+
+        override fun batchRequestSent(elementCount: Long, requestSize: Long) {}
+    }
+
+    private class OperationTracer(stats: GoogleApiMetrics.MethodStats) : MeteredTracer(stats) {
+
+        init {
+            started()
+        }
+
+        override fun operationSucceeded() = succeeded()
+
+        override fun operationCancelled() = succeeded()
+
+        override fun operationFailed(error: Throwable?) = failed(error)
+    }
+
+    private class AttemptTracer(stats: GoogleApiMetrics.MethodStats) : MeteredTracer(stats) {
+
+        override fun attemptStarted(attemptNumber: Int) = started()
+
+        override fun attemptSucceeded() = succeeded()
+
+        override fun attemptCancelled() = succeeded()
+
+        override fun attemptFailed(error: Throwable?, delay: Duration?) = failed(error)
+
+        override fun attemptFailedRetriesExhausted(error: Throwable?) = failed(error)
+
+        override fun attemptPermanentFailure(error: Throwable?) = failed(error)
+    }
+
+    companion object {
+        private const val NANOS_IN_MILLI = 1_000_000L
+    }
+}
@@ -0,0 +1,129 @@
+package jetbrains.buildServer.clouds.google.connector
+
+import com.google.api.client.googleapis.util.Utils
+import com.google.api.client.http.EmptyContent
+import com.google.api.client.http.GenericUrl
+import com.google.api.client.http.HttpContent
+import com.google.api.client.http.HttpRequestInitializer
+import com.google.api.client.http.HttpTransport
+import com.google.api.client.http.json.JsonHttpContent
+import com.google.api.client.json.GenericJson
+import com.google.api.client.json.JsonObjectParser
+import com.google.cloud.compute.v1.Instance
+import com.google.cloud.compute.v1.Operation
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+
+/**
+ * Calls Compute REST methods which are not exposed by the generated compute client.
+ */
+class GoogleComputeRestClient internal constructor(transport: HttpTransport,
+                                                   initializer: HttpRequestInitializer,
+                                                   private val projectId: String?) {
+
+    private val myRequestFactory = transport.createRequestFactory(initializer)
+    private val myParser = JsonObjectParser(Utils.getDefaultJsonFactory())
+    private val myEndpoint = GoogleApiClients.endpoint(ENDPOINT)
+
+    suspend fun suspendInstance(zone: String, instance: String) = instanceAction(zone, instance, "suspend")
+
+    suspend fun resumeInstance(zone: String, instance: String) = instanceAction(zone, instance, "resume")
+
+    /**
+     * Creates instances which differ only by names in a single request.
+     *
+     * Instances are created all or none, so the result of the operation applies to each of them.
+     * Per-instance properties of the API are limited to the name and host name.
+     *
+     * @param names names of instances.
+     * @param instance properties of instances, name is ignored.
+     * @param sourceInstanceTemplate partial URL of the instance template, if any.
+     */
+    suspend fun bulkInsertInstances(zone: String,
+                                    names: List<String>,
+                                    instance: Instance,
+                                    sourceInstanceTemplate: String?): Operation = withContext(Dispatchers.IO) {
+        val body = GenericJson().apply {
+            set("count", names.size)
+            set("minCount", names.size)
+            set("perInstanceProperties", names.associateWith { mapOf("name" to it) })
+            set("instanceProperties", getInstanceProperties(instance))
+            sourceInstanceTemplate?.let { set("sourceInstanceTemplate", it) }
+        }
+
+        val url = GenericUrl("${myEndpoint}projects/$projectId/zones/$zone/instances/bulkInsert")
+        post(url, JsonHttpContent(myParser.jsonFactory, body))
+    }
+
+    private suspend fun instanceAction(zone: String, instance: String, action: String): Operation = withContext(Dispatchers.IO) {
+        val url = GenericUrl("${myEndpoint}projects/$projectId/zones/$zone/instances/$instance/$action")
+        post(url, EmptyContent())
+    }
+
+    private fun post(url: GenericUrl, content: HttpContent): Operation {
+        val json = myRequestFactory.buildPostRequest(url, content)
+                .setParser(myParser)
+                .execute()
+                .parseAs(GenericJson::class.java)
+
+        return Operation.newBuilder().apply {
+            (json["id"] as? String)?.let { id = it }
+            (json["name"] as? String)?.let { name = it }
+            (json["zone"] as? String)?.let { setZone(it) }
+            (json["status"] as? String)?.let { status = it }
+            (json["operationType"] as? String)?.let { operationType = it }
+        }.build()
+    }
+
+    /**
+     * Converts instance resource to instance properties, they refer to machine and disk types by names.
+     */
+    private fun getInstanceProperties(instance: Instance) = GenericJson().apply {
+        instance.machineType?.let { set("machineType", it.substringAfterLast('/')) }
+        instance.disksList?.let { disks ->
+            set("disks", disks.map { disk ->
+                GenericJson().apply {
+                    disk.initializeParams?.let { params ->
+                        set("initializeParams", GenericJson().apply {
+                            params.sourceImage?.let { set("sourceImage", it) }
+                            params.diskType?.let { set("diskType", it.substringAfterLast('/')) }
+                            params.diskSizeGb?.let { set("diskSizeGb", it) }
+                        })
+                    }
+                    disk.boot?.let { set("boot", it) }
+                    disk.autoDelete?.let { set("autoDelete", it) }
+                    disk.type?.let { set("type", it) }
+                }
+            })
+        }
+        instance.networkInterfacesList?.let { networks ->
+            set("networkInterfaces", networks.map { network ->
+                GenericJson().apply {
+                    network.network?.let { set("network", it) }
+                    network.subnetwork?.let { set("subnetwork", it) }
+                    network.accessConfigsList?.let { configs ->
+                        set("accessConfigs", configs.map { mapOf("name" to it.name, "type" to it.type) })
+                    }
+                }
+            })
+        }
+        instance.serviceAccountsList?.let { accounts ->
+            set("serviceAccounts", accounts.map { mapOf("email" to it.email, "scopes" to it.scopesList) })
+        }
+        instance.scheduling?.let { scheduling ->
+            set("scheduling", GenericJson().apply {
+                scheduling.automaticRestart?.let { set("automaticRestart", it) }
+                scheduling.onHostMaintenance?.let { set("onHostMaintenance", it) }
+                scheduling.preemptible?.let { set("preemptible", it) }
+            })
+        }
+        instance.labelsMap?.let { set("labels", it) }
+        instance.metadata?.itemsList?.let { items ->
+            set("metadata", mapOf("items" to items.map { mapOf("key" to it.key, "value" to it.value) }))
+        }
+    }
+
+    companion object {
+        private const val ENDPOINT = "https://compute.googleapis.com/compute/v1/"
+    }
+}
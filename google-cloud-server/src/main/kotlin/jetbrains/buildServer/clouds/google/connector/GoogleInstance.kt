@@ -1,30 +1,48 @@
-
-
 package jetbrains.buildServer.clouds.google.connector
 
 import com.google.cloud.compute.v1.Instance
 import jetbrains.buildServer.clouds.InstanceStatus
 import jetbrains.buildServer.clouds.base.connector.AbstractInstance
 import jetbrains.buildServer.clouds.google.GoogleConstants
-import java.text.SimpleDateFormat
+import java.time.OffsetDateTime
+import java.time.format.DateTimeParseException
 import java.util.*
 
 /**
  * Google cloud instance.
+ *
+ * Keeps only the fields used by the plugin instead of the whole API model, since instances
+ * of all images are re-created on each poll.
  */
-class GoogleInstance internal constructor(private val instance: Instance, zone: String) : AbstractInstance() {
-
-    private val properties: Map<String, String>
-
-    init {
-        properties = instance.metadata.itemsList
-                .associateBy({ items -> items.key }, { items -> items.value })
-                .toMutableMap()
-        properties[GoogleConstants.ZONE] = zone
-    }
+class GoogleInstance private constructor(private val myName: String,
+                                         private val myStatus: InstanceStatus,
+                                         private val myStartTime: Long?,
+                                         private val myIpAddress: String?,
+                                         private val myProperties: Map<String, String>,
+                                         /** Whether the instance was stopped and lost its state, unlike suspended ones. */
+                                         internal val isTerminated: Boolean,
+                                         /** Whether the instance was suspended and could be resumed. */
+                                         internal val isSuspended: Boolean,
+                                         /** Whether the instance has the server label, instances created by old versions have no labels. */
+                                         internal val isLabeled: Boolean,
+                                         /** Labels of the instance, they are kept only for instances without the server label. */
+                                         internal val labels: Map<String, String>,
+                                         internal val labelFingerprint: String?) : AbstractInstance() {
+
+    internal constructor(instance: Instance, zone: String) : this(
+            instance.name,
+            STATES[instance.status] ?: InstanceStatus.UNKNOWN,
+            parseTimestamp(instance.creationTimestamp),
+            instance.networkInterfacesList.firstOrNull()?.networkIP,
+            getProperties(instance, zone),
+            "TERMINATED" == instance.status,
+            "SUSPENDED" == instance.status,
+            instance.labelsMap?.get(GoogleConstants.LABEL_SERVER) != null,
+            instance.labelsMap?.takeIf { it[GoogleConstants.LABEL_SERVER] == null }.orEmpty(),
+            instance.labelFingerprint)
 
     override fun getName(): String {
-        return instance.name
+        return myName
     }
 
     override fun isInitialized(): Boolean {
@@ -32,32 +50,32 @@ class GoogleInstance internal constructor(private val instance: Instance, zone:
     }
 
     override fun getStartDate(): Date? {
-        return DATE_FORMAT.parse(instance.creationTimestamp)
+        return myStartTime?.let { Date(it) }
     }
 
     override fun getIpAddress(): String? {
-        val interfaces = instance.networkInterfacesList
-        if (interfaces.isEmpty()) return null
-        return interfaces[0].networkIP
+        return myIpAddress
     }
 
     override fun getInstanceStatus(): InstanceStatus {
-        STATES[instance.status]?.let {
-            return it
-        }
-
-        return InstanceStatus.UNKNOWN
+        return myStatus
     }
 
     override fun getProperty(name: String): String? {
-        return properties[name]
+        return myProperties[name]
     }
 
-    override fun getProperties() = properties
+    override fun getProperties() = myProperties
 
     companion object {
-        private var STATES = TreeMap<String, InstanceStatus>(String.CASE_INSENSITIVE_ORDER)
-        private val DATE_FORMAT = SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX")
+        private val STATES = TreeMap<String, InstanceStatus>(String.CASE_INSENSITIVE_ORDER)
+        private val METADATA_KEYS = setOf(
+                GoogleConstants.TAG_SERVER,
+                GoogleConstants.TAG_DATA,
+                GoogleConstants.TAG_PROFILE,
+                GoogleConstants.TAG_SOURCE,
+                GoogleConstants.TAG_POOL
+        )
 
         init {
             STATES["PROVISIONING"] = InstanceStatus.SCHEDULED_TO_START
@@ -65,6 +83,27 @@ class GoogleInstance internal constructor(private val instance: Instance, zone:
             STATES["STAGING"] = InstanceStatus.SCHEDULED_TO_STOP
             STATES["STOPPING"] = InstanceStatus.STOPPING
             STATES["TERMINATED"] = InstanceStatus.STOPPED
+            STATES["SUSPENDING"] = InstanceStatus.STOPPING
+            STATES["SUSPENDED"] = InstanceStatus.STOPPED
+        }
+
+        private fun parseTimestamp(timestamp: String?): Long? {
+            if (timestamp.isNullOrEmpty()) return null
+            return try {
+                OffsetDateTime.parse(timestamp).toInstant().toEpochMilli()
+            } catch (e: DateTimeParseException) {
+                null
+            }
+        }
+
+        private fun getProperties(instance: Instance, zone: String): Map<String, String> {
+            val properties = hashMapOf(GoogleConstants.ZONE to zone)
+            instance.metadata?.itemsList?.forEach {
+                if (it.key in METADATA_KEYS) {
+                    properties[it.key] = it.value
+                }
+            }
+            return Collections.unmodifiableMap(properties)
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,200 @@
+package jetbrains.buildServer.clouds.google.connector
+
+import com.google.cloud.compute.v1.*
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.clouds.google.GoogleConstants
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import kotlinx.coroutines.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps the latest inventory of TeamCity instances in a project.
+ *
+ * All profiles which use the same credentials and project subscribe to a single snapshot,
+ * so the project is listed once per snapshot interval regardless of the number of profiles.
+ *
+ * The snapshot is a pull-through cache rather than a poller: it is refreshed by the first
+ * profile update task which finds it outdated, and other tasks reuse it. This keeps per-profile
+ * update intervals and fast polling of starting instances, and needs no server-wide scheduler.
+ */
+class GoogleInstanceSnapshotService(private val clients: GoogleApiClients) {
+
+    private val mySubscriptions = ConcurrentHashMap<String, Subscription>()
+    private val myLock = Any()
+    @Volatile private var mySnapshot: Snapshot? = null
+    private var myRefresh: Deferred<Snapshot>? = null
+
+    /**
+     * Returns instances which belong to the server from a snapshot which covers the subscriber zones.
+     *
+     * @param subscriberId subscribed profile.
+     * @param zones zones used by the profile.
+     * @param legacyScan whether the profile needs instances without TeamCity labels.
+     * @param notBefore snapshot should not be created before this time, e.g. the last instance launch.
+     */
+    suspend fun getInstances(serverId: String?, subscriberId: String, zones: Set<String>, legacyScan: Boolean, notBefore: Long): List<GoogleInstance> {
+        val subscription = Subscription(zones, legacyScan)
+        mySubscriptions[subscriberId] = subscription
+
+        val maxAge = TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong(SNAPSHOT_MAX_AGE_PROPERTY, DEFAULT_SNAPSHOT_MAX_AGE_SEC))
+        mySnapshot?.let {
+            if (System.currentTimeMillis() - it.createdAt < maxAge && it.createdAt > notBefore && it.covers(subscription)) {
+                return it.instances
+            }
+        }
+
+        var snapshot = refresh(serverId).await()
+        if (!snapshot.covers(subscription)) {
+            // Refresh was started before the subscription has been changed
+            snapshot = refresh(serverId).await()
+        }
+
+        return snapshot.instances
+    }
+
+    fun unsubscribe(subscriberId: String) {
+        mySubscriptions.remove(subscriberId)
+    }
+
+    private fun refresh(serverId: String?): Deferred<Snapshot> = synchronized(myLock) {
+        myRefresh?.let {
+            if (it.isActive) return it
+        }
+
+        clients.scope.async {
+            val subscriptions = mySubscriptions.values.toList()
+            val zones = subscriptions.flatMapTo(sortedSetOf()) { it.zones }
+            val unfiltered = subscriptions.any { it.legacyScan }
+            val filter = if (unfiltered) null else "(labels.${GoogleConstants.LABEL_SERVER} = \"${labelValue(serverId)}\")"
+
+            val mode = TeamCityProperties.getProperty(LISTING_MODE_PROPERTY, LISTING_MODE_AUTO)
+            val zonal = when (mode) {
+                LISTING_MODE_ZONAL -> zones.isNotEmpty()
+                LISTING_MODE_AGGREGATED -> false
+                else -> zones.isNotEmpty() && zones.size <= TeamCityProperties.getInteger(LISTING_MAX_ZONES_PROPERTY, DEFAULT_LISTING_MAX_ZONES)
+            }
+
+            val instances = if (zonal) {
+                LOG.debug("Listing instances of project ${clients.projectId} in zones $zones")
+                listZoneInstances(zones, filter, serverId)
+            } else {
+                LOG.debug("Listing instances of project ${clients.projectId}")
+                listAggregatedInstances(filter, serverId)
+            }
+
+            Snapshot(instances, System.currentTimeMillis(), if (zonal) zones else null, unfiltered).apply {
+                mySnapshot = this
+            }
+        }.apply {
+            myRefresh = this
+        }
+    }
+
+    private suspend fun listAggregatedInstances(filter: String?, serverId: String?): List<GoogleInstance> {
+        val request = AggregatedListInstancesHttpRequest.newBuilder()
+                .setProject(ProjectName.format(clients.projectId))
+                .setFields(INSTANCE_LIST_FIELDS)
+                .apply {
+                    filter?.let { setFilter(it) }
+                }
+                .build()
+
+        val instances = arrayListOf<GoogleInstance>()
+        // Pages are fetched one by one, so each of them is charged to the rate limiter
+        clients.rateLimiter.readPages({
+            clients.instanceClient.aggregatedListInstancesPagedCallable()
+                    .futureCall(request, clients.listingContext("instances.aggregatedList")).await().page
+        }) { page ->
+            page.values.forEach { scopedList ->
+                scopedList.instancesList?.forEach { project(it, serverId)?.let(instances::add) }
+            }
+        }
+        return instances
+    }
+
+    private suspend fun listZoneInstances(zones: Collection<String>, filter: String?, serverId: String?): List<GoogleInstance> = coroutineScope {
+        zones.map { zone ->
+            async {
+                val request = ListInstancesHttpRequest.newBuilder()
+                        .setZone(ProjectZoneName.format(clients.projectId, zone))
+                        .setFields(ZONE_INSTANCE_LIST_FIELDS)
+                        .apply {
+                            filter?.let { setFilter(it) }
+                        }
+                        .build()
+
+                val instances = arrayListOf<GoogleInstance>()
+                clients.rateLimiter.readPages({
+                    clients.instanceClient.listInstancesPagedCallable()
+                            .futureCall(request, clients.listingContext("instances.list")).await().page
+                }) { page ->
+                    page.values.forEach { project(it, serverId)?.let(instances::add) }
+                }
+                instances
+            }
+        }.awaitAll().flatten()
+    }
+
+    /**
+     * Converts an instance of the server into a compact projection, instances of other servers
+     * and ones which were not created by TeamCity are dropped.
+     */
+    private fun project(instance: Instance, serverId: String?): GoogleInstance? {
+        val metadata = instance.metadata?.itemsList ?: return null
+        var server: String? = null
+        var source: String? = null
+        var managed = false
+        metadata.forEach {
+            when (it.key) {
+                GoogleConstants.TAG_SERVER -> server = it.value
+                GoogleConstants.TAG_SOURCE -> source = it.value
+                GoogleConstants.TAG_DATA -> if (!it.value.isNullOrEmpty()) managed = true
+                GoogleConstants.TAG_POOL -> managed = true
+            }
+        }
+
+        if (server != serverId || source == null || !managed) return null
+        return GoogleInstance(instance, ProjectZoneName.parse(instance.zone).zone)
+    }
+
+    private class Subscription(val zones: Set<String>, val legacyScan: Boolean)
+
+    private class Snapshot(val instances: List<GoogleInstance>,
+                           val createdAt: Long,
+                           private val zones: Set<String>?,
+                           private val unfiltered: Boolean) {
+        fun covers(subscription: Subscription): Boolean {
+            return (zones == null || zones.containsAll(subscription.zones)) && (unfiltered || !subscription.legacyScan)
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(GoogleInstanceSnapshotService::class.java.name)
+
+        /**
+         * Partial response mask which covers instance fields read by [GoogleInstance].
+         */
+        private const val INSTANCE_LIST_FIELDS = "items/*/instances(name,zone,status,creationTimestamp," +
+                "metadata/items,labels,labelFingerprint,networkInterfaces/networkIP),nextPageToken"
+        private const val ZONE_INSTANCE_LIST_FIELDS = "items(name,zone,status,creationTimestamp," +
+                "metadata/items,labels,labelFingerprint,networkInterfaces/networkIP),nextPageToken"
+        private const val SNAPSHOT_MAX_AGE_PROPERTY = "teamcity.cloud.google.instances.snapshotMaxAgeSeconds"
+        private const val DEFAULT_SNAPSHOT_MAX_AGE_SEC = 30L
+        private const val LISTING_MODE_PROPERTY = "teamcity.cloud.google.instances.listingMode"
+        private const val LISTING_MODE_AUTO = "auto"
+        private const val LISTING_MODE_ZONAL = "zonal"
+        private const val LISTING_MODE_AGGREGATED = "aggregated"
+        private const val LISTING_MAX_ZONES_PROPERTY = "teamcity.cloud.google.instances.zonalListingMaxZones"
+        private const val DEFAULT_LISTING_MAX_ZONES = 3
+        private val LABEL_INVALID_CHARS = Regex("[^a-z0-9_-]")
+        private const val LABEL_MAX_LENGTH = 63
+
+        /**
+         * Converts a value to satisfy label value restrictions.
+         */
+        fun labelValue(value: String?): String {
+            return LABEL_INVALID_CHARS.replace((value ?: "").lowercase(), "-").take(LABEL_MAX_LENGTH)
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package jetbrains.buildServer.clouds.google.connector
+
+import com.google.cloud.compute.v1.Operation
+import jetbrains.buildServer.clouds.CloudInstanceUserData
+import jetbrains.buildServer.clouds.google.GoogleCloudInstance
+import kotlinx.coroutines.CompletableDeferred
+
+/**
+ * Request to create a virtual machine, completed with the insert operation or with the failure cause.
+ *
+ * Request without user data creates a warm pool instance which does not register as an agent.
+ */
+class GoogleLaunchRequest(val instance: GoogleCloudInstance, val userData: CloudInstanceUserData?) {
+    val operation = CompletableDeferred<Operation>()
+}
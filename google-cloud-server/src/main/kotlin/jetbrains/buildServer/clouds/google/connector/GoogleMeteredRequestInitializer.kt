@@ -0,0 +1,73 @@
+package jetbrains.buildServer.clouds.google.connector
+
+import com.google.api.client.http.*
+
+/**
+ * Records statistics of requests made through google-http-client request factories into [GoogleApiMetrics].
+ *
+ * Interceptors and handlers installed by the delegate, e.g. credentials, are kept and called as well.
+ * Response size is known only when the response has the Content-Length header.
+ */
+class GoogleMeteredRequestInitializer(private val metrics: GoogleApiMetrics,
+                                      private val delegate: HttpRequestInitializer?) : HttpRequestInitializer {
+
+    override fun initialize(request: HttpRequest) {
+        delegate?.initialize(request)
+        val call = MeteredCall(metrics, request.interceptor, request.responseInterceptor, request.ioExceptionHandler)
+        request.interceptor = call
+        request.responseInterceptor = call
+        request.ioExceptionHandler = call
+    }
+
+    private class MeteredCall(private val metrics: GoogleApiMetrics,
+                              private val interceptor: HttpExecuteInterceptor?,
+                              private val responseInterceptor: HttpResponseInterceptor?,
+                              private val ioExceptionHandler: HttpIOExceptionHandler?)
+        : HttpExecuteInterceptor, HttpResponseInterceptor, HttpIOExceptionHandler {
+
+        private var myStats: GoogleApiMetrics.MethodStats? = null
+        private var myStart = 0L
+
+        override fun intercept(request: HttpRequest) {
+            interceptor?.intercept(request)
+
+            // Method and URL are set after the request is initialized, so they are read on execution
+            val stats = metrics.forRequest(request.requestMethod, request.url.build())
+            stats.calls.incrementAndGet()
+            val length = request.content?.length ?: -1
+            if (length > 0) {
+                stats.requestBytes.addAndGet(length)
+            }
+
+            myStats = stats
+            myStart = System.nanoTime()
+        }
+
+        override fun interceptResponse(response: HttpResponse) {
+            myStats?.let { stats ->
+                recordLatency(stats)
+                if (response.statusCode >= 400) {
+                    stats.recordError(response.statusCode)
+                }
+                response.headers.contentLength?.let { stats.responseBytes.addAndGet(it) }
+            }
+            responseInterceptor?.interceptResponse(response)
+        }
+
+        override fun handleIOException(request: HttpRequest, supportsRetry: Boolean): Boolean {
+            myStats?.let { stats ->
+                recordLatency(stats)
+                stats.recordError(GoogleApiMetrics.IO_ERROR)
+            }
+            return ioExceptionHandler?.handleIOException(request, supportsRetry) ?: false
+        }
+
+        private fun recordLatency(stats: GoogleApiMetrics.MethodStats) {
+            stats.latency.record((System.nanoTime() - myStart) / NANOS_IN_MILLI)
+        }
+    }
+
+    companion object {
+        private const val NANOS_IN_MILLI = 1_000_000L
+    }
+}
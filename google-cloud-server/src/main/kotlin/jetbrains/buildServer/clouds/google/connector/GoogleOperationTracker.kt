@@ -0,0 +1,66 @@
+package jetbrains.buildServer.clouds.google.connector
+
+import com.google.cloud.compute.v1.GetZoneOperationHttpRequest
+import com.google.cloud.compute.v1.Operation
+import com.google.cloud.compute.v1.ProjectZoneOperationName
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withTimeout
+import java.util.concurrent.TimeUnit
+
+/**
+ * Follows zone operations until they are done.
+ *
+ * Operations are polled from coroutines without blocking threads, the number of concurrent
+ * requests to the operations API is bounded for the project.
+ */
+class GoogleOperationTracker(private val clients: GoogleApiClients) {
+
+    private val mySemaphore = Semaphore(TeamCityProperties.getInteger(MAX_REQUESTS_PROPERTY, DEFAULT_MAX_REQUESTS))
+
+    /**
+     * Waits for completion of the operation.
+     *
+     * @return operation in DONE state.
+     */
+    suspend fun awaitDone(operation: Operation): Operation {
+        if (operation.status == STATUS_DONE) {
+            return operation
+        }
+
+        val zone = operation.zone.substringAfterLast('/')
+        val name = ProjectZoneOperationName.format(operation.name, clients.projectId, zone)
+        val timeout = TimeUnit.MINUTES.toMillis(TeamCityProperties.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_MIN))
+        var pollDelay = INITIAL_POLL_DELAY_MS
+
+        return withTimeout(timeout) {
+            var current = operation
+            while (current.status != STATUS_DONE) {
+                delay(pollDelay)
+                pollDelay = minOf(pollDelay * 2, MAX_POLL_DELAY_MS)
+                current = mySemaphore.withPermit {
+                    clients.rateLimiter.call(GoogleApiRateLimiter.CallKind.Read) {
+                        clients.operationsClient.getZoneOperationCallable()
+                                .futureCall(GetZoneOperationHttpRequest.newBuilder()
+                                        .setOperation(name)
+                                        .build())
+                                .await()
+                    }
+                }
+            }
+            current
+        }
+    }
+
+    companion object {
+        private const val STATUS_DONE = "DONE"
+        private const val INITIAL_POLL_DELAY_MS = 1000L
+        private const val MAX_POLL_DELAY_MS = 8000L
+        private const val MAX_REQUESTS_PROPERTY = "teamcity.cloud.google.operations.maxConcurrentRequests"
+        private const val DEFAULT_MAX_REQUESTS = 8
+        private const val TIMEOUT_PROPERTY = "teamcity.cloud.google.operations.timeoutMinutes"
+        private const val DEFAULT_TIMEOUT_MIN = 15L
+    }
+}
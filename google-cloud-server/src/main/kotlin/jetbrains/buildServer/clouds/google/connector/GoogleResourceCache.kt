@@ -0,0 +1,113 @@
+package jetbrains.buildServer.clouds.google.connector
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import kotlinx.coroutines.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Caches Compute resource listings by resource kind and scope (project, zone or region).
+ *
+ * Entries are refreshed in background when they get older than the refresh time and
+ * stale values are served while the refresh is in progress. Expired values are still
+ * returned when the API does not respond within the stale timeout or fails.
+ */
+class GoogleResourceCache(private val scope: CoroutineScope) {
+
+    private val myEntries = object : LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, CacheEntry>?) =
+                size > TeamCityProperties.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES)
+    }
+    private val myLoading = ConcurrentHashMap<String, Deferred<Any?>>()
+
+    /**
+     * Returns cached value of the resource kind in the given scope or loads it.
+     */
+    suspend fun <T> get(kind: String, scopeId: String?, loader: suspend () -> T): T {
+        val key = "$kind:${scopeId ?: ""}"
+        val entry = synchronized(myEntries) { myEntries[key] }
+        val now = System.currentTimeMillis()
+        val ttl = getTtl(kind)
+
+        if (entry != null) {
+            val age = now - entry.loadedAt
+            if (age < ttl * REFRESH_RATIO) {
+                return entry.value()
+            }
+
+            val deferred = load(key, loader)
+            if (age < ttl) {
+                return entry.value()
+            }
+
+            // Serve expired value if the API is slow or fails
+            val timeout = TeamCityProperties.getLong(STALE_TIMEOUT_PROPERTY, DEFAULT_STALE_TIMEOUT_MS)
+            return try {
+                withTimeoutOrNull(timeout) { deferred.await() }?.let {
+                    @Suppress("UNCHECKED_CAST")
+                    it as T
+                } ?: entry.value<T>().apply {
+                    LOG.debug("Serving stale $key, refresh did not complete in $timeout ms")
+                }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                LOG.infoAndDebugDetails("Serving stale $key, failed to refresh it: ${e.message}", e)
+                entry.value()
+            }
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        return load(key, loader).await() as T
+    }
+
+    /**
+     * Removes all cached values.
+     */
+    fun invalidate() {
+        synchronized(myEntries) { myEntries.clear() }
+    }
+
+    private fun <T> load(key: String, loader: suspend () -> T): Deferred<Any?> {
+        // Loading is performed in the cache scope to not cancel a shared load with a single caller
+        return myLoading.computeIfAbsent(key) {
+            scope.async(start = CoroutineStart.LAZY) {
+                try {
+                    loader().apply {
+                        synchronized(myEntries) {
+                            myEntries[key] = CacheEntry(this, System.currentTimeMillis())
+                        }
+                    }
+                } finally {
+                    myLoading.remove(key)
+                }
+            }
+        }.apply { start() }
+    }
+
+    private class CacheEntry(private val value: Any?, val loadedAt: Long) {
+        @Suppress("UNCHECKED_CAST")
+        fun <T> value() = value as T
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(GoogleResourceCache::class.java.name)
+        private const val TTL_PROPERTY = "teamcity.cloud.google.cache.ttlSeconds"
+        private const val MAX_ENTRIES_PROPERTY = "teamcity.cloud.google.cache.maxEntries"
+        private const val STALE_TIMEOUT_PROPERTY = "teamcity.cloud.google.cache.staleTimeoutMs"
+        private const val DEFAULT_TTL_SEC = 300L
+        private const val DEFAULT_MAX_ENTRIES = 500
+        private const val DEFAULT_STALE_TIMEOUT_MS = 3000L
+        private const val REFRESH_RATIO = 0.8
+
+        /**
+         * Gets time to live for the kind, could be overridden via teamcity.cloud.google.cache.<kind>.ttlSeconds.
+         */
+        private fun getTtl(kind: String): Long {
+            val ttl = TeamCityProperties.getLong("teamcity.cloud.google.cache.$kind.ttlSeconds",
+                    TeamCityProperties.getLong(TTL_PROPERTY, DEFAULT_TTL_SEC))
+            return TimeUnit.SECONDS.toMillis(ttl)
+        }
+    }
+}
@@ -2,24 +2,23 @@
 
 package jetbrains.buildServer.clouds.google.types
 
-import jetbrains.buildServer.clouds.CloudInstanceUserData
 import jetbrains.buildServer.clouds.base.errors.CheckedCloudException
 import jetbrains.buildServer.clouds.google.GoogleCloudImage
-import jetbrains.buildServer.clouds.google.GoogleCloudInstance
 import jetbrains.buildServer.clouds.google.connector.GoogleApiConnector
+import jetbrains.buildServer.clouds.google.connector.GoogleLaunchRequest
 import kotlinx.coroutines.coroutineScope
 import java.util.*
 
 class GoogleImageFamilyHandler(private val connector: GoogleApiConnector) : GoogleHandler {
 
-    override suspend fun checkImage(image: GoogleCloudImage) = coroutineScope {
+    override suspend fun checkImage(image: GoogleCloudImage, lookups: GoogleSourceLookups) = coroutineScope {
         val exceptions = ArrayList<Throwable>()
         val details = image.imageDetails
 
         if (details.sourceImageFamily.isNullOrEmpty()) {
             exceptions.add(CheckedCloudException("Image Family should not be empty"))
         } else {
-            if (!connector.getImageFamilies(details.sourceProject).contains(details.sourceImageFamily)) {
+            if (!lookups.imageFamilyExists(details.sourceProject, details.sourceImageFamily)) {
                 exceptions.add(CheckedCloudException("Image Family does not exist"))
             }
         }
@@ -44,6 +43,6 @@ class GoogleImageFamilyHandler(private val connector: GoogleApiConnector) : Goog
         exceptions
     }
 
-    override suspend fun createInstance(instance: GoogleCloudInstance, userData: CloudInstanceUserData) =
-        connector.createImageInstance(instance, userData)
+    override suspend fun createInstances(requests: List<GoogleLaunchRequest>) =
+        connector.createImageInstances(requests)
 }
\ No newline at end of file
@@ -2,25 +2,23 @@
 
 package jetbrains.buildServer.clouds.google.types
 
-import com.google.cloud.compute.v1.Operation
-import jetbrains.buildServer.clouds.CloudInstanceUserData
 import jetbrains.buildServer.clouds.base.errors.CheckedCloudException
 import jetbrains.buildServer.clouds.google.GoogleCloudImage
-import jetbrains.buildServer.clouds.google.GoogleCloudInstance
 import jetbrains.buildServer.clouds.google.connector.GoogleApiConnector
+import jetbrains.buildServer.clouds.google.connector.GoogleLaunchRequest
 import kotlinx.coroutines.coroutineScope
 import java.util.*
 
 class GoogleImageHandler(private val connector: GoogleApiConnector) : GoogleHandler {
 
-    override suspend fun checkImage(image: GoogleCloudImage) = coroutineScope {
+    override suspend fun checkImage(image: GoogleCloudImage, lookups: GoogleSourceLookups) = coroutineScope {
         val exceptions = ArrayList<Throwable>()
         val details = image.imageDetails
 
         if (details.sourceImage.isNullOrEmpty()) {
             exceptions.add(CheckedCloudException("Image should not be empty"))
         } else {
-            if (!connector.getImages(details.sourceProject).containsKey(details.sourceImage)) {
+            if (!lookups.imageExists(details.sourceProject, details.sourceImage)) {
                 exceptions.add(CheckedCloudException("Image does not exist"))
             }
         }
@@ -45,6 +43,6 @@ class GoogleImageHandler(private val connector: GoogleApiConnector) : GoogleHand
         exceptions
     }
 
-    override suspend fun createInstance(instance: GoogleCloudInstance, userData: CloudInstanceUserData): Operation =
-        connector.createImageInstance(instance, userData)
+    override suspend fun createInstances(requests: List<GoogleLaunchRequest>) =
+        connector.createImageInstances(requests)
 }
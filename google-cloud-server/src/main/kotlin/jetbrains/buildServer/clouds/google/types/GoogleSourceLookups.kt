@@ -0,0 +1,36 @@
+package jetbrains.buildServer.clouds.google.types
+
+import jetbrains.buildServer.clouds.google.connector.GoogleApiConnector
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Performs image source lookups within a single check cycle.
+ *
+ * Lookups of the same source are executed once and shared by all images which use it.
+ */
+class GoogleSourceLookups(private val scope: CoroutineScope,
+                          private val connector: GoogleApiConnector) {
+
+    private val myLookups = ConcurrentHashMap<String, Deferred<Boolean>>()
+
+    suspend fun imageExists(project: String?, image: String) = lookup("image:$project/$image") {
+        connector.imageExists(project, image)
+    }
+
+    suspend fun imageFamilyExists(project: String?, family: String) = lookup("family:$project/$family") {
+        connector.imageFamilyExists(project, family)
+    }
+
+    suspend fun templateExists(template: String) = lookup("template:$template") {
+        connector.templateExists(template)
+    }
+
+    private suspend fun lookup(key: String, block: suspend () -> Boolean): Boolean {
+        return myLookups.computeIfAbsent(key) {
+            scope.async { block() }
+        }.await()
+    }
+}
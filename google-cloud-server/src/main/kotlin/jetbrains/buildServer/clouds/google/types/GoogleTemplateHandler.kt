@@ -2,25 +2,23 @@
 
 package jetbrains.buildServer.clouds.google.types
 
-import com.google.cloud.compute.v1.Operation
-import jetbrains.buildServer.clouds.CloudInstanceUserData
 import jetbrains.buildServer.clouds.base.errors.CheckedCloudException
 import jetbrains.buildServer.clouds.google.GoogleCloudImage
-import jetbrains.buildServer.clouds.google.GoogleCloudInstance
 import jetbrains.buildServer.clouds.google.connector.GoogleApiConnector
+import jetbrains.buildServer.clouds.google.connector.GoogleLaunchRequest
 import kotlinx.coroutines.coroutineScope
 import java.util.*
 
 class GoogleTemplateHandler(private val connector: GoogleApiConnector) : GoogleHandler {
 
-    override suspend fun checkImage(image: GoogleCloudImage) = coroutineScope {
+    override suspend fun checkImage(image: GoogleCloudImage, lookups: GoogleSourceLookups) = coroutineScope {
         val exceptions = ArrayList<Throwable>()
         val details = image.imageDetails
 
         if (details.instanceTemplate.isNullOrEmpty()) {
             exceptions.add(CheckedCloudException("Image template should not be empty"))
         } else {
-            if (!connector.getTemplates().containsKey(details.instanceTemplate)) {
+            if (!lookups.templateExists(details.instanceTemplate)) {
                 exceptions.add(CheckedCloudException("Image template does not exist"))
             }
         }
@@ -28,6 +26,6 @@ class GoogleTemplateHandler(private val connector: GoogleApiConnector) : GoogleH
         exceptions
     }
 
-    override suspend fun createInstance(instance: GoogleCloudInstance, userData: CloudInstanceUserData): Operation =
-        connector.createTemplateInstance(instance, userData)
+    override suspend fun createInstances(requests: List<GoogleLaunchRequest>) =
+        connector.createTemplateInstances(requests)
 }
@@ -0,0 +1,80 @@
+package jetbrains.buildServer.clouds.google.utils
+
+import java.util.*
+
+/**
+ * Allocates the lowest free index for instance names like `prefix1`, `prefix2`.
+ *
+ * Index of a removed instance stays in quarantine until the instance disappears from the cloud,
+ * so a new virtual machine never gets the name of one which is still being deleted.
+ */
+class InstanceIndexAllocator(prefix: String) {
+
+    private val myPrefix = prefix.lowercase()
+    private val myUsed = BitSet()
+    private val myQuarantined = BitSet()
+
+    /**
+     * Reserves the lowest free index.
+     *
+     * @return index.
+     */
+    @Synchronized
+    fun allocate(): Int {
+        var index = 1
+        while (true) {
+            index = myUsed.nextClearBit(index)
+            if (!myQuarantined[index]) break
+            index++
+        }
+        myUsed.set(index)
+        return index
+    }
+
+    /**
+     * Marks index of the instance as used.
+     */
+    @Synchronized
+    fun markUsed(name: String) {
+        val index = indexOf(name) ?: return
+        myUsed.set(index)
+        myQuarantined.clear(index)
+    }
+
+    /**
+     * Puts index of the removed instance into quarantine.
+     */
+    @Synchronized
+    fun release(name: String) {
+        val index = indexOf(name) ?: return
+        if (myUsed[index]) {
+            myUsed.clear(index)
+            myQuarantined.set(index)
+        }
+    }
+
+    /**
+     * Frees quarantined indexes of instances which are not present in the cloud anymore.
+     *
+     * @param names names of existing instances.
+     */
+    @Synchronized
+    fun sync(names: Collection<String>) {
+        if (myQuarantined.isEmpty) return
+        val existing = BitSet()
+        names.forEach { name -> indexOf(name)?.let { existing.set(it) } }
+        myQuarantined.and(existing)
+    }
+
+    private fun indexOf(name: String): Int? {
+        val lowerName = name.lowercase()
+        if (!lowerName.startsWith(myPrefix)) return null
+        val suffix = lowerName.substring(myPrefix.length)
+        if (suffix.isEmpty() || suffix.length > MAX_DIGITS || !suffix.all { it in '0'..'9' }) return null
+        return suffix.toInt().takeIf { it > 0 }
+    }
+
+    companion object {
+        private const val MAX_DIGITS = 9
+    }
+}
@@ -0,0 +1,79 @@
+package jetbrains.buildServer.clouds.google.utils
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import kotlin.math.ceil
+
+/**
+ * Lock-free histogram of durations in milliseconds.
+ *
+ * Each power of two range is split into a few linear buckets, so the memory is fixed regardless
+ * of the number of recorded values and percentiles are reported with a relative error below 12.5%.
+ */
+class LatencyHistogram {
+
+    private val myCounts = AtomicLongArray(BUCKETS)
+    private val myCount = AtomicLong()
+    private val mySum = AtomicLong()
+    private val myMax = AtomicLong()
+
+    fun record(valueMs: Long) {
+        val value = maxOf(valueMs, 0L)
+        myCounts.incrementAndGet(bucketOf(value))
+        myCount.incrementAndGet()
+        mySum.addAndGet(value)
+        myMax.accumulateAndGet(value) { a, b -> maxOf(a, b) }
+    }
+
+    val count: Long
+        get() = myCount.get()
+
+    val sum: Long
+        get() = mySum.get()
+
+    val max: Long
+        get() = myMax.get()
+
+    /**
+     * Returns the value below which the given fraction of recorded values falls.
+     *
+     * @param fraction percentile as a fraction, e.g. 0.95.
+     */
+    fun percentile(fraction: Double): Long {
+        val total = count
+        if (total == 0L) return 0
+
+        val rank = maxOf(ceil(fraction * total).toLong(), 1L)
+        var seen = 0L
+        for (i in 0 until BUCKETS) {
+            seen += myCounts.get(i)
+            if (seen >= rank) {
+                return minOf(upperBound(i), max)
+            }
+        }
+
+        return max
+    }
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 3
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+        private const val BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS
+
+        private fun bucketOf(value: Long): Int {
+            if (value < SUB_BUCKETS) return value.toInt()
+
+            val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+            val subBucket = (value ushr (exponent - SUB_BUCKET_BITS)).toInt() and (SUB_BUCKETS - 1)
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket
+        }
+
+        private fun upperBound(index: Int): Long {
+            if (index < SUB_BUCKETS) return index.toLong()
+
+            val exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1
+            val subBucket = index % SUB_BUCKETS
+            return ((SUB_BUCKETS + subBucket + 1).toLong() shl (exponent - SUB_BUCKET_BITS)) - 1
+        }
+    }
+}
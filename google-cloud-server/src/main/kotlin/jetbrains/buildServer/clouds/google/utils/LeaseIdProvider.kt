@@ -0,0 +1,100 @@
+package jetbrains.buildServer.clouds.google.utils
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * File-based number provider which reserves blocks of numbers.
+ *
+ * The storage file keeps the first number which was not reserved yet. It is updated under a file lock
+ * and replaced atomically, so server nodes sharing the data directory never get the same numbers and
+ * a restart only skips the rest of the reserved block. Numbers within a block are served from memory.
+ */
+class LeaseIdProvider(private val myStorageFile: File,
+                      private val myBlockSize: Int = TeamCityProperties.getInteger(BLOCK_SIZE_PROPERTY, DEFAULT_BLOCK_SIZE).coerceAtLeast(1))
+    : IdProvider {
+
+    private var myNext = 0
+    private var myLimit = 0
+
+    override val nextId: Int
+        @Synchronized get() {
+            if (myNext >= myLimit) {
+                reserveBlock()
+            }
+            return myNext++
+        }
+
+    private fun reserveBlock() {
+        val lockFile = File(myStorageFile.parentFile, myStorageFile.name + ".lock")
+        // File locks are held by the whole process, so threads of the same process are serialized separately
+        synchronized(LOCKS.computeIfAbsent(myStorageFile.absolutePath) { Any() }) {
+            myStorageFile.parentFile?.mkdirs()
+            RandomAccessFile(lockFile, "rw").channel.use { channel ->
+                val lock = channel.lock()
+                try {
+                    val start = maxOf(readNextId(), myLimit, DEFAULT_ID)
+                    val limit = start + myBlockSize
+                    writeNextId(limit)
+                    myNext = start
+                    myLimit = limit
+                    LOG.debug("Reserved ids $start..${limit - 1} in '${myStorageFile.absolutePath}'")
+                } finally {
+                    lock.release()
+                }
+            }
+        }
+    }
+
+    private fun readNextId(): Int {
+        if (!myStorageFile.exists()) return DEFAULT_ID
+
+        val text = myStorageFile.readText().trim()
+        return text.toIntOrNull() ?: if (myLimit > 0) {
+            LOG.warn("Invalid content of idx file '${myStorageFile.absolutePath}', continuing from $myLimit")
+            myLimit
+        } else {
+            throw IOException("Invalid content of idx file '${myStorageFile.absolutePath}': $text")
+        }
+    }
+
+    private fun writeNextId(value: Int) {
+        val tempFile = File(myStorageFile.parentFile, myStorageFile.name + ".tmp")
+        FileOutputStream(tempFile).use {
+            it.write(value.toString().toByteArray(Charsets.UTF_8))
+            it.fd.sync()
+        }
+
+        try {
+            Files.move(tempFile.toPath(), myStorageFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        } catch (e: AtomicMoveNotSupportedException) {
+            Files.move(tempFile.toPath(), myStorageFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(LeaseIdProvider::class.java.name)
+        private val LOCKS = ConcurrentHashMap<String, Any>()
+        private val PROVIDERS = ConcurrentHashMap<String, LeaseIdProvider>()
+        private const val BLOCK_SIZE_PROPERTY = "teamcity.cloud.google.ids.blockSize"
+        private const val DEFAULT_BLOCK_SIZE = 100
+        private const val DEFAULT_ID = 1
+
+        /**
+         * Returns the provider shared by all images with the same storage file,
+         * so a re-created cloud client continues the reserved block instead of skipping it.
+         */
+        fun forFile(storageFile: File): LeaseIdProvider {
+            return PROVIDERS.computeIfAbsent(storageFile.absolutePath) { LeaseIdProvider(storageFile) }
+        }
+    }
+}
@@ -4,13 +4,14 @@ package jetbrains.buildServer.clouds.google.web
 
 import jetbrains.buildServer.clouds.google.GoogleConstants
 import jetbrains.buildServer.clouds.google.connector.GoogleApiConnector
+import jetbrains.buildServer.clouds.google.connector.GoogleApiConnectorRegistry
 import kotlinx.coroutines.coroutineScope
 import org.jdom.Element
 
 /**
  * Handles disk types request.
  */
-internal class DiskTypesHandler : GoogleResourceHandler() {
+internal class DiskTypesHandler(connectorRegistry: GoogleApiConnectorRegistry) : GoogleResourceHandler(connectorRegistry) {
     override suspend fun handle(connector: GoogleApiConnector, parameters: Map<String, String>) = coroutineScope {
         val zone = parameters[GoogleConstants.ZONE]!!
         val diskTypes = connector.getDiskTypes(zone)
@@ -4,7 +4,7 @@ package jetbrains.buildServer.clouds.google.web
 
 import jetbrains.buildServer.clouds.google.GoogleConstants
 import jetbrains.buildServer.clouds.google.connector.GoogleApiConnector
-import jetbrains.buildServer.clouds.google.connector.GoogleApiConnectorImpl
+import jetbrains.buildServer.clouds.google.connector.GoogleApiConnectorRegistry
 import jetbrains.buildServer.clouds.google.utils.PluginPropertiesUtil
 import jetbrains.buildServer.controllers.BasePropertiesBean
 import org.jdom.Content
@@ -12,7 +12,7 @@ import org.jdom.Content
 /**
  * Google resource handler.
  */
-internal abstract class GoogleResourceHandler : ResourceHandler {
+internal abstract class GoogleResourceHandler(private val connectorRegistry: GoogleApiConnectorRegistry) : ResourceHandler {
     override suspend fun handle(parameters: Map<String, String>): Content {
         val propsBean = BasePropertiesBean(null)
         PluginPropertiesUtil.bindPropertiesFromRequest(parameters, propsBean, true)
@@ -21,12 +21,16 @@ internal abstract class GoogleResourceHandler : ResourceHandler {
         val credentialsType = props[GoogleConstants.CREDENTIALS_TYPE]
         val apiConnector = if (credentialsType != GoogleConstants.CREDENTIALS_ENVIRONMENT) {
             val accessKey = props[GoogleConstants.ACCESS_KEY]!!
-            GoogleApiConnectorImpl(accessKey)
+            connectorRegistry.createConnector(accessKey)
         } else {
-            GoogleApiConnectorImpl()
+            connectorRegistry.createConnector()
         }
 
-        return handle(apiConnector, parameters)
+        try {
+            return handle(apiConnector, parameters)
+        } finally {
+            apiConnector.dispose()
+        }
     }
 
     protected abstract suspend fun handle(connector: GoogleApiConnector, parameters: Map<String, String>): Content
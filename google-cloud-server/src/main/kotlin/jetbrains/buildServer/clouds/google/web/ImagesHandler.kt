@@ -3,13 +3,14 @@
 package jetbrains.buildServer.clouds.google.web
 
 import jetbrains.buildServer.clouds.google.connector.GoogleApiConnector
+import jetbrains.buildServer.clouds.google.connector.GoogleApiConnectorRegistry
 import kotlinx.coroutines.coroutineScope
 import org.jdom.Element
 
 /**
  * Handles networks request.
  */
-internal class ImagesHandler : GoogleResourceHandler() {
+internal class ImagesHandler(connectorRegistry: GoogleApiConnectorRegistry) : GoogleResourceHandler(connectorRegistry) {
     override suspend fun handle(connector: GoogleApiConnector, parameters: Map<String, String>) = coroutineScope {
         val images = connector.getImages(parameters.getOrDefault("sourceProject", ""))
         val imagesElement = Element("images")
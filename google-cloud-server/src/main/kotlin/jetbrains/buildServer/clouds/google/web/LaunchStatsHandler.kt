@@ -0,0 +1,42 @@
+package jetbrains.buildServer.clouds.google.web
+
+import jetbrains.buildServer.clouds.google.GoogleCloudImage
+import jetbrains.buildServer.clouds.google.GoogleCloudImagesHolder
+import jetbrains.buildServer.clouds.google.utils.LatencyHistogram
+import kotlinx.coroutines.coroutineScope
+import org.jdom.Element
+
+/**
+ * Handles launch latency statistics request.
+ */
+internal class LaunchStatsHandler(private val imagesHolder: GoogleCloudImagesHolder) : ResourceHandler {
+    override suspend fun handle(parameters: Map<String, String>) = coroutineScope {
+        val statsElement = Element("launchStats")
+        val profileId = parameters["profileId"]
+        if (profileId.isNullOrEmpty()) {
+            return@coroutineScope statsElement
+        }
+
+        imagesHolder.getImages(profileId).filterIsInstance<GoogleCloudImage>().forEach { image ->
+            val stats = image.launchStats
+            statsElement.addContent(Element("image").apply {
+                setAttribute("id", image.imageDetails.sourceId)
+                addContent(histogramElement("total", "Time to agent", stats.total))
+                stats.phases.forEach { (phase, histogram) ->
+                    addContent(histogramElement(phase.name, phase.description, histogram))
+                }
+            })
+        }
+
+        statsElement
+    }
+
+    private fun histogramElement(id: String, name: String, histogram: LatencyHistogram) = Element("phase").apply {
+        setAttribute("id", id)
+        setAttribute("count", histogram.count.toString())
+        setAttribute("p50", histogram.percentile(0.5).toString())
+        setAttribute("p95", histogram.percentile(0.95).toString())
+        setAttribute("p99", histogram.percentile(0.99).toString())
+        text = name
+    }
+}
@@ -4,13 +4,14 @@ package jetbrains.buildServer.clouds.google.web
 
 import jetbrains.buildServer.clouds.google.GoogleConstants
 import jetbrains.buildServer.clouds.google.connector.GoogleApiConnector
+import jetbrains.buildServer.clouds.google.connector.GoogleApiConnectorRegistry
 import kotlinx.coroutines.coroutineScope
 import org.jdom.Element
 
 /**
  * Handles machine types request.
  */
-internal class MachineTypesHandler : GoogleResourceHandler() {
+internal class MachineTypesHandler(connectorRegistry: GoogleApiConnectorRegistry) : GoogleResourceHandler(connectorRegistry) {
     override suspend fun handle(connector: GoogleApiConnector, parameters: Map<String, String>) = coroutineScope {
         val zone = parameters[GoogleConstants.ZONE]!!
         val machineTypes = connector.getMachineTypes(zone)
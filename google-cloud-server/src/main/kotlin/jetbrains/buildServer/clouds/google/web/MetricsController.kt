@@ -0,0 +1,135 @@
+package jetbrains.buildServer.clouds.google.web
+
+import jetbrains.buildServer.clouds.google.GoogleCloudImage
+import jetbrains.buildServer.clouds.google.GoogleCloudImagesHolder
+import jetbrains.buildServer.clouds.google.connector.GoogleApiMetrics
+import jetbrains.buildServer.clouds.google.utils.LatencyHistogram
+import jetbrains.buildServer.controllers.BaseController
+import jetbrains.buildServer.serverSide.SBuildServer
+import jetbrains.buildServer.serverSide.auth.Permission
+import jetbrains.buildServer.web.openapi.PluginDescriptor
+import jetbrains.buildServer.web.openapi.WebControllerManager
+import jetbrains.buildServer.web.util.SessionUser
+import org.springframework.web.servlet.ModelAndView
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+/**
+ * Exposes Google API call and instance launch statistics in the Prometheus text format.
+ */
+class MetricsController(server: SBuildServer,
+                        pluginDescriptor: PluginDescriptor,
+                        manager: WebControllerManager,
+                        private val metrics: GoogleApiMetrics,
+                        private val imagesHolder: GoogleCloudImagesHolder) : BaseController(server) {
+
+    init {
+        manager.registerController(pluginDescriptor.getPluginResourcesPath("metrics.html"), this)
+    }
+
+    override fun doHandle(request: HttpServletRequest, response: HttpServletResponse): ModelAndView? {
+        val user = SessionUser.getUser(request)
+        if (user == null || !user.isPermissionGrantedGlobally(Permission.VIEW_SERVER_SETTINGS)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN)
+            return null
+        }
+
+        response.contentType = CONTENT_TYPE
+        response.writer.use { it.write(render()) }
+        return null
+    }
+
+    private fun render() = buildString {
+        val methods = metrics.methods.entries.sortedBy { it.key.toString() }
+
+        header("${PREFIX}_api_calls_total", "counter", "Google API calls.")
+        methods.forEach { (key, stats) ->
+            sample("${PREFIX}_api_calls_total", apiLabels(key), stats.calls.get())
+        }
+
+        header("${PREFIX}_api_errors_total", "counter", "Failed Google API calls by HTTP status code, 0 for I/O errors.")
+        methods.forEach { (key, stats) ->
+            stats.errors.entries.sortedBy { it.key }.forEach { (code, count) ->
+                sample("${PREFIX}_api_errors_total", apiLabels(key) + ("code" to code.toString()), count.get())
+            }
+        }
+
+        header("${PREFIX}_api_latency_milliseconds", "summary", "Google API call latency until response headers.")
+        methods.forEach { (key, stats) ->
+            summary("${PREFIX}_api_latency_milliseconds", apiLabels(key), stats.latency)
+        }
+
+        header("${PREFIX}_api_request_bytes_total", "counter", "Google API request payload size, not reported for Compute client calls.")
+        methods.forEach { (key, stats) ->
+            sample("${PREFIX}_api_request_bytes_total", apiLabels(key), stats.requestBytes.get())
+        }
+
+        header("${PREFIX}_api_response_bytes_total", "counter", "Google API response payload size, not reported for Compute client calls.")
+        methods.forEach { (key, stats) ->
+            sample("${PREFIX}_api_response_bytes_total", apiLabels(key), stats.responseBytes.get())
+        }
+
+        val images = imagesHolder.getImages().filterIsInstance<GoogleCloudImage>()
+        header("${PREFIX}_launch_milliseconds", "summary", "Instance launch duration by phase, total is time to agent registration.")
+        images.forEach { image ->
+            val labels = listOf("profile" to (image.imageDetails.profileId ?: ""), "image" to image.imageDetails.sourceId)
+            summary("${PREFIX}_launch_milliseconds", labels + ("phase" to "total"), image.launchStats.total)
+            image.launchStats.phases.forEach { (phase, histogram) ->
+                summary("${PREFIX}_launch_milliseconds", labels + ("phase" to phase.name), histogram)
+            }
+        }
+
+        val operations = images.map { it.operations }.distinct().sortedBy { it.profileId }
+        header("${PREFIX}_operations_active", "gauge", "Virtual machine operations in progress.")
+        operations.forEach {
+            sample("${PREFIX}_operations_active", listOf("profile" to it.profileId), it.active.toLong())
+        }
+
+        header("${PREFIX}_operations_queued", "gauge", "Virtual machine operations waiting to be started.")
+        operations.forEach {
+            sample("${PREFIX}_operations_queued", listOf("profile" to it.profileId), it.queued.toLong())
+        }
+
+        header("${PREFIX}_operations_rejected_total", "counter", "Background operations skipped because the queue was full.")
+        operations.forEach {
+            sample("${PREFIX}_operations_rejected_total", listOf("profile" to it.profileId), it.rejected)
+        }
+
+        header("${PREFIX}_operations_queue_wait_milliseconds", "summary", "Time operations waited in the queue.")
+        operations.forEach {
+            summary("${PREFIX}_operations_queue_wait_milliseconds", listOf("profile" to it.profileId), it.queueWait)
+        }
+    }
+
+    private fun StringBuilder.header(name: String, type: String, help: String) {
+        append("# HELP ").append(name).append(' ').append(help).append('\n')
+        append("# TYPE ").append(name).append(' ').append(type).append('\n')
+    }
+
+    private fun StringBuilder.summary(name: String, labels: List<Pair<String, String>>, histogram: LatencyHistogram) {
+        QUANTILES.forEach {
+            sample(name, labels + ("quantile" to it.toString()), histogram.percentile(it))
+        }
+        sample("${name}_sum", labels, histogram.sum)
+        sample("${name}_count", labels, histogram.count)
+    }
+
+    private fun StringBuilder.sample(name: String, labels: List<Pair<String, String>>, value: Long) {
+        append(name)
+        labels.joinTo(this, ",", "{", "}") { (label, labelValue) -> "$label=\"${escape(labelValue)}\"" }
+        append(' ').append(value).append('\n')
+    }
+
+    companion object {
+        private const val PREFIX = "teamcity_cloud_google"
+        private const val CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8"
+        private val QUANTILES = listOf(0.5, 0.95, 0.99)
+
+        private fun apiLabels(key: GoogleApiMetrics.MethodKey) = listOf("project" to key.project, "method" to key.method)
+
+        private fun escape(value: String) = value
+                .replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n")
+    }
+}
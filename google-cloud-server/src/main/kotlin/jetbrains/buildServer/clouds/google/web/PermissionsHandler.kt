@@ -5,13 +5,14 @@ package jetbrains.buildServer.clouds.google.web
 import com.google.cloud.resourcemanager.ResourceManagerException
 import com.intellij.openapi.diagnostic.Logger
 import jetbrains.buildServer.clouds.google.connector.GoogleApiConnector
+import jetbrains.buildServer.clouds.google.connector.GoogleApiConnectorRegistry
 import kotlinx.coroutines.coroutineScope
 import org.jdom.Element
 
 /**
  * Handles permissions request.
  */
-internal class PermissionsHandler : GoogleResourceHandler() {
+internal class PermissionsHandler(connectorRegistry: GoogleApiConnectorRegistry) : GoogleResourceHandler(connectorRegistry) {
     override suspend fun handle(connector: GoogleApiConnector, parameters: Map<String, String>) = coroutineScope {
         val permissions = Element("permissions")
         try {
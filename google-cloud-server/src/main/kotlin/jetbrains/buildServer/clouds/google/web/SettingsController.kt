@@ -3,6 +3,8 @@
 package jetbrains.buildServer.clouds.google.web
 
 import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.clouds.google.GoogleCloudImagesHolder
+import jetbrains.buildServer.clouds.google.connector.GoogleApiConnectorRegistry
 import jetbrains.buildServer.controllers.ActionErrors
 import jetbrains.buildServer.controllers.BaseController
 import jetbrains.buildServer.controllers.XmlResponseUtil
@@ -25,24 +27,28 @@ import javax.servlet.http.HttpServletResponse
 class SettingsController(server: SBuildServer,
                          private val myPluginDescriptor: PluginDescriptor,
                          manager: WebControllerManager,
-                         agentPoolManager: AgentPoolManager) : BaseController(server) {
+                         agentPoolManager: AgentPoolManager,
+                         connectorRegistry: GoogleApiConnectorRegistry,
+                         imagesHolder: GoogleCloudImagesHolder) : BaseController(server) {
 
     private val myHandlers = TreeMap<String, ResourceHandler>(String.CASE_INSENSITIVE_ORDER)
     private val myJspPath: String = myPluginDescriptor.getPluginResourcesPath("settings.jsp")
     private val myHtmlPath: String = myPluginDescriptor.getPluginResourcesPath("settings.html")
+    private val myScope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
 
     init {
         manager.registerController(myHtmlPath, this)
         myHandlers["agentPools"] = AgentPoolHandler(agentPoolManager)
-        myHandlers["zones"] = ZonesHandler()
-        myHandlers["networks"] = NetworksHandler()
-        myHandlers["subnets"] = SubnetsHandler()
-        myHandlers["machineTypes"] = MachineTypesHandler()
-        myHandlers["diskTypes"] = DiskTypesHandler()
-        myHandlers["images"] = ImagesHandler()
-        myHandlers["imageFamilies"] = ImageFamiliesHandler()
-        myHandlers["permissions"] = PermissionsHandler()
-        myHandlers["templates"] = TemplatesHandler()
+        myHandlers["zones"] = ZonesHandler(connectorRegistry)
+        myHandlers["networks"] = NetworksHandler(connectorRegistry)
+        myHandlers["subnets"] = SubnetsHandler(connectorRegistry)
+        myHandlers["machineTypes"] = MachineTypesHandler(connectorRegistry)
+        myHandlers["diskTypes"] = DiskTypesHandler(connectorRegistry)
+        myHandlers["images"] = ImagesHandler(connectorRegistry)
+        myHandlers["imageFamilies"] = ImageFamiliesHandler(connectorRegistry)
+        myHandlers["permissions"] = PermissionsHandler(connectorRegistry)
+        myHandlers["templates"] = TemplatesHandler(connectorRegistry)
+        myHandlers["launchStats"] = LaunchStatsHandler(imagesHolder)
     }
 
     override fun doHandle(request: HttpServletRequest, response: HttpServletResponse): ModelAndView? {
@@ -66,42 +72,62 @@ class SettingsController(server: SBuildServer,
         mv.model["basePath"] = myHtmlPath
         mv.model["resPath"] = myPluginDescriptor.pluginResourcesPath
         mv.model["projectId"] = request.getParameter("projectId")
+        mv.model["profileId"] = request.getParameter("profileId")
         return mv
     }
 
+    /**
+     * Handles resource requests asynchronously, the servlet thread is released before remote calls are made.
+     */
     private fun doPost(request: HttpServletRequest,
-                       response: HttpServletResponse) = runBlocking {
+                       response: HttpServletResponse) {
         val xmlResponse = XmlResponseUtil.newXmlResponse()
         val errors = ActionErrors()
-        val resources = request.getParameterValues("resource")
+        val resources = request.getParameterValues("resource") ?: emptyArray()
         val parameters = request.parameterMap.entries.associate { it.key to (it.value.firstOrNull() ?: "") }
         val errorMessages = mutableSetOf<String>()
         val context = request.startAsync(request, response)
 
-        resources.filterNotNull().map { resource ->
-            return@map async {
-                myHandlers[resource]?.let { handler ->
-                    try {
-                        xmlResponse.addContent(handler.handle(parameters))
-                    } catch (e: Throwable) {
-                        LOG.infoAndDebugDetails(e.message, e)
-                        e.message?.let {
-                            if (!errorMessages.contains(it)) {
-                                errors.addError(resource, it)
-                                errorMessages.add(it)
+        myScope.launch {
+            try {
+                resources.filterNotNull().map { resource ->
+                    return@map async {
+                        myHandlers[resource]?.let { handler ->
+                            try {
+                                val content = handler.handle(parameters)
+                                synchronized(xmlResponse) {
+                                    xmlResponse.addContent(content)
+                                }
+                            } catch (e: Throwable) {
+                                LOG.infoAndDebugDetails(e.message, e)
+                                e.message?.let {
+                                    synchronized(errors) {
+                                        if (!errorMessages.contains(it)) {
+                                            errors.addError(resource, it)
+                                            errorMessages.add(it)
+                                        }
+                                    }
+                                }
                             }
                         }
                     }
+                }.awaitAll()
+
+                if (errors.hasErrors()) {
+                    errors.serialize(xmlResponse)
                 }
-            }
-        }.awaitAll()
 
-        if (errors.hasErrors()) {
-            errors.serialize(xmlResponse)
+                writeResponse(xmlResponse, context.response)
+            } catch (e: Throwable) {
+                LOG.infoAndDebugDetails("Failed to handle request: " + e.message, e)
+            } finally {
+                context.complete()
+            }
         }
+    }
 
-        writeResponse(xmlResponse, context.response)
-        context.complete()
+    fun dispose() {
+        myScope.cancel()
     }
     companion object {
         private val LOG = Logger.getInstance(SettingsController::class.java.name)
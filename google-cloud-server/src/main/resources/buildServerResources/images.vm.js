@@ -72,6 +72,11 @@ function GoogleImagesViewModel($, ko, dialog, config) {
 
     self.imageType = ko.observable();
 
+    self.warmPoolRefills = ko.observableArray([
+        {id: 'Create', text: "Remove used instances and create new ones"},
+        {id: 'Reuse', text: "Stop used instances and return them to the pool"}
+    ]);
+
     // Image details
     var maxLength = 60;
     self.machineCustom = ko.observable(false);
@@ -120,6 +125,9 @@ function GoogleImagesViewModel($, ko, dialog, config) {
             }
         }),
         maxInstances: ko.observable(1).extend({required: true, min: 0}),
+        warmPoolSize: ko.observable(0).extend({required: true, digit: true, min: 0}),
+        warmPoolMaxAge: ko.observable(0).extend({required: true, digit: true, min: 0}),
+        warmPoolRefill: ko.observable('Create'),
         preemptible: ko.observable(false),
         machineCustom: self.machineCustom,
         machineType: ko.observable().extend({
@@ -209,6 +217,7 @@ function GoogleImagesViewModel($, ko, dialog, config) {
         }),
         growingId: ko.observable(false),
         externalIP: ko.observable(false),
+        suspendOnStop: ko.observable(false),
         serviceAccount: ko.observable(),
         scopes: ko.observable(),
         agentPoolId: ko.observable().extend({required: true}),
@@ -225,6 +234,7 @@ function GoogleImagesViewModel($, ko, dialog, config) {
     self.machineTypes = ko.observableArray([]);
     self.diskTypes = ko.observableArray([]);
     self.agentPools = ko.observableArray([]);
+    self.launchStats = ko.observable({});
     self.nets = {};
 
     // Hidden fields for serialized values
@@ -291,7 +301,8 @@ function GoogleImagesViewModel($, ko, dialog, config) {
             image.subnetManually = getBoolean(image.subnetManually);
             image.machineMemoryExt = getBoolean(image.machineMemoryExt);
             image.growingId = getBoolean(image.growingId);
-            image.externalIP = getBoolean(image.externalIP)
+            image.externalIP = getBoolean(image.externalIP);
+            image.suspendOnStop = getBoolean(image.suspendOnStop);
         });
         self.images(images);
     });
@@ -307,12 +318,16 @@ function GoogleImagesViewModel($, ko, dialog, config) {
             sourceProject: '',
             imageType: imageTypes.image,
             maxInstances: 1,
+            warmPoolSize: 0,
+            warmPoolMaxAge: 0,
+            warmPoolRefill: 'Create',
             diskSizeGb: '',
             preemptible: false,
             machineCustom: false,
             subnetManually: false,
             growingId: false,
             externalIP: false,
+            suspendOnStop: false,
         };
 
         var sourceImage = image.sourceImage;
@@ -377,11 +392,15 @@ function GoogleImagesViewModel($, ko, dialog, config) {
         model.diskType(diskType);
         model.diskSizeGb(image.diskSizeGb);
         model.maxInstances(image.maxInstances);
+        model.warmPoolSize(image.warmPoolSize || 0);
+        model.warmPoolMaxAge(image.warmPoolMaxAge || 0);
+        model.warmPoolRefill(image.warmPoolRefill || 'Create');
         model.preemptible(image.preemptible);
         model.vmNamePrefix(image['source-id']);
         model.metadata(image.metadata);
         model.growingId(image.growingId);
         model.externalIP(image.externalIP);
+        model.suspendOnStop(image.suspendOnStop);
         model.serviceAccount(image.serviceAccount);
         model.scopes(image.scopes);
         model.agentPoolId(image.agent_pool_id);
@@ -415,6 +434,9 @@ function GoogleImagesViewModel($, ko, dialog, config) {
             subnetManually: model.subnetManually(),
             subnetInput: model.subnetInput(),
             maxInstances: model.maxInstances(),
+            warmPoolSize: model.warmPoolSize(),
+            warmPoolMaxAge: model.warmPoolMaxAge(),
+            warmPoolRefill: model.warmPoolRefill(),
             preemptible: model.preemptible(),
             'source-id': model.vmNamePrefix(),
             machineCustom: model.machineCustom(),
@@ -427,6 +449,7 @@ function GoogleImagesViewModel($, ko, dialog, config) {
             metadata: model.metadata(),
             growingId: model.growingId(),
             externalIP: model.externalIP(),
+            suspendOnStop: model.suspendOnStop(),
             serviceAccount: model.serviceAccount(),
             scopes: model.scopes(),
             agent_pool_id: model.agentPoolId(),
@@ -751,6 +774,52 @@ function GoogleImagesViewModel($, ko, dialog, config) {
         });
     })();
 
+    self.getLaunchTime = function (image) {
+        var phases = self.launchStats()[image['source-id']];
+        var total = phases && ko.utils.arrayFirst(phases, function (phase) {
+            return phase.id === 'total';
+        });
+        if (!total || !total.count) return "—";
+
+        return formatDuration(total.p50) + " / " + formatDuration(total.p95);
+    };
+
+    self.getLaunchDetails = function (image) {
+        var phases = self.launchStats()[image['source-id']] || [];
+        return $.map(phases, function (phase) {
+            return phase.text + ": p50 " + formatDuration(phase.p50) + ", p95 " + formatDuration(phase.p95) +
+                ", p99 " + formatDuration(phase.p99) + " (" + phase.count + ")";
+        }).join("\n");
+    };
+
+    function formatDuration(ms) {
+        return ms < 1000 ? ms + " ms" : (ms / 1000).toFixed(1) + " s";
+    }
+
+    (function loadLaunchStats() {
+        if (!config.profileId) return;
+
+        var url = config.baseUrl + "?resource=launchStats&profileId=" + encodeURIComponent(config.profileId);
+        return $.post(url).then(function (response) {
+            var stats = {};
+            $(response).find("launchStats:eq(0) image").each(function () {
+                stats[$(this).attr("id")] = $(this).find("phase").map(function () {
+                    return {
+                        id: $(this).attr("id"),
+                        text: $(this).text(),
+                        count: parseInt($(this).attr("count")),
+                        p50: parseInt($(this).attr("p50")),
+                        p95: parseInt($(this).attr("p95")),
+                        p99: parseInt($(this).attr("p99"))
+                    };
+                }).get();
+            });
+            self.launchStats(stats);
+        }, function (error) {
+            console.log(error);
+        });
+    })();
+
     self.afterRender = function () {
         if (!self.credentials().accessKey()) {
             self.showAccessKey(true);
@@ -154,6 +154,32 @@
                     <span class="error option-error" data-bind="validationMessage: image().maxInstances"></span>
                 </td>
             </tr>
+            <tr class="advancedSetting">
+                <th><label for="${cons.warmPoolSize}">Warm pool size: <l:star/></label></th>
+                <td>
+                    <input type="text" name="${cons.warmPoolSize}" class="longField ignoreModified"
+                           data-bind="textInput: image().warmPoolSize"/>
+                    <span class="smallNote">Number of stopped instances kept ready to start, 0 disables the pool</span>
+                    <span class="error option-error" data-bind="validationMessage: image().warmPoolSize"></span>
+                </td>
+            </tr>
+            <tr class="advancedSetting" data-bind="css: {hidden: !(image().warmPoolSize() > 0)}">
+                <th class="noBorder"><label for="${cons.warmPoolMaxAge}">Maximum age in minutes: <l:star/></label></th>
+                <td>
+                    <input type="text" name="${cons.warmPoolMaxAge}" class="longField ignoreModified"
+                           data-bind="textInput: image().warmPoolMaxAge"/>
+                    <span class="smallNote">Pool instances older than this are replaced, 0 keeps them indefinitely</span>
+                    <span class="error option-error" data-bind="validationMessage: image().warmPoolMaxAge"></span>
+                </td>
+            </tr>
+            <tr class="advancedSetting" data-bind="css: {hidden: !(image().warmPoolSize() > 0)}">
+                <th class="noBorder"><label for="${cons.warmPoolRefill}">Refill policy:</label></th>
+                <td>
+                    <select name="${cons.warmPoolRefill}" class="longField ignoreModified"
+                            data-bind="options: warmPoolRefills, optionsText: 'text', optionsValue: 'id',
+                            value: image().warmPoolRefill"></select>
+                </td>
+            </tr>
             <tr data-bind="if: image().imageType() != 'Template'">
                 <th><label for="${cons.machineType}">Machine type:</label></th>
                 <td>
@@ -208,6 +234,17 @@
                     </label>
                 </td>
             </tr>
+            <tr class="advancedSetting">
+                <th class="noBorder"></th>
+                <td>
+                    <input type="checkbox" name="${cons.suspendOnStop}" class="ignoreModified"
+                           data-bind="checked: image().suspendOnStop"/>
+                    <label for="${cons.suspendOnStop}">Suspend instances instead of removing them
+                        <bs:help urlPrefix="https://cloud.google.com/compute/docs/instances/suspend-resume-instance" file=""/>
+                    </label>
+                    <span class="smallNote">Resumed agents keep memory and disk caches from the previous builds</span>
+                </td>
+            </tr>
             <tr data-bind="if: image().imageType() != 'Template'" class="advancedSetting">
                 <th><label for="${cons.diskType}">Disk type:</label></th>
                 <td>
@@ -342,6 +379,7 @@
                     <th class="name">Cloud image type</th>
                     <th class="name">Cloud image source</th>
                     <th class="name center" title="Maximum number of instances">Limit</th>
+                    <th class="name center" title="Time from launch request until agent registration, p50 / p95">Time to agent</th>
                     <th class="name center" colspan="2">Actions</th>
                 </tr>
                 </thead>
@@ -361,6 +399,8 @@
                         <!-- /ko -->
                     </td>
                     <td class="center edit" data-bind="text: maxInstances"></td>
+                    <td class="center nowrap"
+                        data-bind="text: $parent.getLaunchTime($data), attr: {title: $parent.getLaunchDetails($data)}"></td>
                     <td class="edit">
                         <a href="#" data-bind="click: $parent.showDialog,
                         css: {hidden: !$parent.isValidCredentials() || $parent.loadingResources() || $parent.validatingKey()}">Edit</a>
@@ -408,7 +448,8 @@
         ko.validation.init({insertMessages: false});
         ko.applyBindings(new GoogleImagesViewModel($j, ko, BS.GoogleImageDialog, {
             baseUrl: "<c:url value='${basePath}'/>",
-            projectId: "${projectId}"
+            projectId: "${projectId}",
+            profileId: "${profileId}"
         }), dialog);
     });
 </script>
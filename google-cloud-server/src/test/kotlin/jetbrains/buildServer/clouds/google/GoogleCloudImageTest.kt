@@ -0,0 +1,78 @@
+package jetbrains.buildServer.clouds.google
+
+import jetbrains.buildServer.clouds.InstanceStatus
+import jetbrains.buildServer.clouds.google.connector.FakeComputeServer
+import jetbrains.buildServer.clouds.google.connector.GoogleApiConnectorImpl
+import jetbrains.buildServer.clouds.google.connector.GoogleApiConnectorRegistry
+import jetbrains.buildServer.clouds.google.connector.GoogleApiMetrics
+import jetbrains.buildServer.clouds.google.utils.IdProvider
+import org.testng.Assert.assertEquals
+import org.testng.Assert.fail
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+
+@Test
+class GoogleCloudImageTest {
+
+    private lateinit var myServer: FakeComputeServer
+    private lateinit var myMetrics: GoogleApiMetrics
+    private lateinit var myRegistry: GoogleApiConnectorRegistry
+    private lateinit var myConnector: GoogleApiConnectorImpl
+    private lateinit var myOperations: GoogleOperationDispatcher
+    private lateinit var myImage: GoogleCloudImage
+
+    @BeforeMethod
+    fun setUp() {
+        myServer = FakeComputeServer()
+        System.setProperty(ENDPOINT_PROPERTY, myServer.url)
+        myMetrics = GoogleApiMetrics()
+        myRegistry = GoogleApiConnectorRegistry(myMetrics)
+        myConnector = myRegistry.createConnector(myServer.createServiceAccountKey()).apply {
+            setServerId("server")
+            setProfileId(PROFILE_ID)
+        }
+        myOperations = GoogleOperationDispatcher(PROFILE_ID)
+        myImage = GoogleCloudImage(createImageDetails(PROFILE_ID), myConnector, object : IdProvider {
+            override val nextId = 1
+        }, myOperations)
+        myImage.detectNewInstances(HashMap())
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        myImage.dispose()
+        myOperations.dispose()
+        myConnector.dispose()
+        myRegistry.dispose()
+        myMetrics.dispose()
+        myServer.close()
+        System.clearProperty(ENDPOINT_PROPERTY)
+    }
+
+    fun should_create_burst_of_instances_with_single_bulk_insert() {
+        val instances = (1..3).map { myImage.startNewInstance(createUserData(PROFILE_ID)) }
+
+        waitFor("instances are running") { instances.all { it.status == InstanceStatus.RUNNING } }
+        assertEquals(myServer.countOperations("bulkInsert"), 1)
+        assertEquals(myServer.countOperations("insert"), 0)
+        assertEquals(myServer.getInstances().map { it["name"] }.toSet(), instances.map { it.name }.toSet())
+    }
+
+    private fun waitFor(description: String, condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + TIMEOUT_MS
+        while (!condition()) {
+            if (System.currentTimeMillis() > deadline) {
+                val statuses = myImage.instances.joinToString { "${it.name}: ${it.status} ${it.errorInfo?.message ?: ""}" }
+                fail("Timed out waiting until $description, instances: $statuses")
+            }
+            Thread.sleep(50)
+        }
+    }
+
+    companion object {
+        private const val ENDPOINT_PROPERTY = "teamcity.cloud.google.api.endpoint"
+        private const val PROFILE_ID = "profile"
+        private const val TIMEOUT_MS = 10000L
+    }
+}
@@ -0,0 +1,36 @@
+package jetbrains.buildServer.clouds.google
+
+import jetbrains.buildServer.clouds.CloudInstanceUserData
+import jetbrains.buildServer.clouds.google.connector.FakeComputeServer
+
+/**
+ * Creates details of an image which boots from the default image of [FakeComputeServer].
+ */
+fun createImageDetails(profileId: String, sourceId: String = "Agent") = GoogleCloudImageDetails(
+        sourceId = sourceId,
+        imageType = GoogleCloudImageType.Image,
+        sourceProject = null,
+        sourceImage = "teamcity-agent-1",
+        sourceImageFamily = null,
+        instanceTemplate = null,
+        zone = FakeComputeServer.DEFAULT_ZONE,
+        network = "default",
+        subnet = null,
+        subnetInput = null,
+        machineType = "n1-standard-1",
+        machineCores = null,
+        machineMemory = null,
+        maxInstances = 10,
+        agentPoolId = null,
+        profileId = profileId,
+        diskType = null,
+        diskSizeGb = null,
+        metadata = null,
+        serviceAccount = null,
+        scopes = null,
+        warmPoolSizeValue = null,
+        warmPoolMaxAgeValue = null,
+        warmPoolRefill = null)
+
+fun createUserData(profileId: String, params: Map<String, String> = emptyMap()) =
+        CloudInstanceUserData("", "token", "http://localhost:8111", null, profileId, "Google profile", params)
@@ -0,0 +1,187 @@
+package jetbrains.buildServer.clouds.google.connector
+
+import jetbrains.buildServer.clouds.CloudInstanceUserData
+import jetbrains.buildServer.clouds.google.GoogleCloudImage
+import jetbrains.buildServer.clouds.google.GoogleCloudInstance
+import jetbrains.buildServer.clouds.google.GoogleConstants
+import jetbrains.buildServer.clouds.google.GoogleOperationDispatcher
+import jetbrains.buildServer.clouds.google.createImageDetails
+import jetbrains.buildServer.clouds.google.createUserData
+import jetbrains.buildServer.clouds.google.utils.IdProvider
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import org.testng.Assert.assertEquals
+import org.testng.Assert.assertNotNull
+import org.testng.Assert.assertTrue
+import org.testng.Assert.fail
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+
+@Test
+class GoogleApiConnectorImplTest {
+
+    private lateinit var myServer: FakeComputeServer
+    private lateinit var myMetrics: GoogleApiMetrics
+    private lateinit var myRegistry: GoogleApiConnectorRegistry
+    private lateinit var myConnector: GoogleApiConnectorImpl
+    private lateinit var myOperations: GoogleOperationDispatcher
+    private lateinit var myImage: GoogleCloudImage
+
+    @BeforeMethod
+    fun setUp() {
+        myServer = FakeComputeServer()
+        System.setProperty(ENDPOINT_PROPERTY, myServer.url)
+        myMetrics = GoogleApiMetrics()
+        myRegistry = GoogleApiConnectorRegistry(myMetrics)
+        myConnector = myRegistry.createConnector(myServer.createServiceAccountKey()).apply {
+            setServerId(SERVER_ID)
+            setProfileId(PROFILE_ID)
+        }
+        myOperations = GoogleOperationDispatcher(PROFILE_ID)
+        myImage = GoogleCloudImage(createImageDetails(PROFILE_ID), myConnector, object : IdProvider {
+            override val nextId = 1
+        }, myOperations)
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        myImage.dispose()
+        myOperations.dispose()
+        myConnector.dispose()
+        myRegistry.dispose()
+        myMetrics.dispose()
+        myServer.close()
+        System.clearProperty(ENDPOINT_PROPERTY)
+        System.clearProperty(SNAPSHOT_MAX_AGE_PROPERTY)
+    }
+
+    fun should_list_resources() {
+        runBlocking {
+            assertEquals(myConnector.getZones().keys, setOf(FakeComputeServer.DEFAULT_ZONE))
+            assertEquals(myConnector.getMachineTypes(FakeComputeServer.DEFAULT_ZONE).keys, setOf("n1-standard-1", "n1-standard-2"))
+            assertTrue(myConnector.imageExists(null, "teamcity-agent-1"))
+        }
+    }
+
+    fun should_read_all_pages() {
+        myServer.pageSize = 1
+        runBlocking {
+            assertEquals(myConnector.getDiskTypes(FakeComputeServer.DEFAULT_ZONE).keys, setOf("pd-standard", "pd-ssd"))
+        }
+    }
+
+    fun should_retry_rate_limited_calls() {
+        myServer.failNext(1, 429, Regex("/zones$"))
+        runBlocking {
+            assertEquals(myConnector.getZones().keys, setOf(FakeComputeServer.DEFAULT_ZONE))
+        }
+    }
+
+    fun should_record_api_metrics() {
+        myServer.failNext(1, 429, Regex("/zones$"))
+        runBlocking {
+            myConnector.getZones()
+            myConnector.imageExists(null, "teamcity-agent-1")
+        }
+
+        val stats = myMetrics.methods[GoogleApiMetrics.MethodKey(FakeComputeServer.DEFAULT_PROJECT, "zones.list")]
+        assertNotNull(stats, myMetrics.methods.keys.toString())
+        assertEquals(stats!!.calls.get(), 2L)
+        assertEquals(stats.errors[429]?.get(), 1L)
+        assertEquals(stats.latency.count, 2L)
+        assertEquals(myMetrics.methods[GoogleApiMetrics.MethodKey(FakeComputeServer.DEFAULT_PROJECT, "images.get")]?.calls?.get(), 1L)
+    }
+
+    fun should_fetch_created_instances() {
+        myServer.operationDurationMillis = 1500
+        val requests = listOf("agent1", "agent2").map { createRequest(it) }
+        val started = System.currentTimeMillis()
+
+        runBlocking {
+            myConnector.createImageInstances(requests)
+            val operations = requests.map { it.operation }.awaitAll()
+            assertEquals(operations.map { it.name }.distinct().size, 1)
+            assertEquals(myConnector.awaitOperation(operations.first()).size, 0)
+        }
+
+        // Operation is tracked until the server reports it done
+        assertTrue(System.currentTimeMillis() - started >= myServer.operationDurationMillis)
+        assertEquals(myServer.countOperations("bulkInsert"), 1)
+        assertEquals(myServer.countOperations("insert"), 0)
+
+        val instances = fetchInstances()
+        assertEquals(instances.keys, setOf("agent1", "agent2"))
+        instances.values.forEach {
+            assertTrue(it.isLabeled, it.name)
+            assertEquals(it.getProperty(GoogleConstants.TAG_PROFILE), PROFILE_ID)
+        }
+    }
+
+    fun should_insert_instances_with_different_data_separately() {
+        val requests = listOf("agent1", "agent2").map {
+            createRequest(it, createUserData(PROFILE_ID, mapOf("agent" to it)))
+        }
+
+        runBlocking {
+            myConnector.createImageInstances(requests)
+            requests.map { it.operation }.awaitAll()
+        }
+
+        assertEquals(myServer.countOperations("insert"), 2)
+        assertEquals(myServer.countOperations("bulkInsert"), 0)
+        assertEquals(fetchInstances().keys, setOf("agent1", "agent2"))
+    }
+
+    fun should_add_labels_to_legacy_instances() {
+        System.setProperty(SNAPSHOT_MAX_AGE_PROPERTY, "0")
+        myServer.addInstance("legacy1", legacyMetadata())
+
+        // Full scan finds the instance without labels and adds them
+        assertEquals(fetchInstances().keys, setOf("legacy1"))
+        waitFor("labels are added") { labelsOf("legacy1")[GoogleConstants.LABEL_SERVER] == SERVER_ID }
+        assertEquals(labelsOf("legacy1")[GoogleConstants.LABEL_PROFILE], PROFILE_ID)
+        assertEquals(labelsOf("legacy1")[GoogleConstants.LABEL_SOURCE], "agent")
+
+        // Once all instances are labeled the listing is filtered by the server label
+        assertEquals(fetchInstances().keys, setOf("legacy1"))
+        myServer.addInstance("legacy2", legacyMetadata())
+        assertEquals(fetchInstances().keys, setOf("legacy1"))
+    }
+
+    private fun createRequest(name: String, userData: CloudInstanceUserData = createUserData(PROFILE_ID)) =
+            GoogleLaunchRequest(GoogleCloudInstance(myImage, name, FakeComputeServer.DEFAULT_ZONE), userData)
+
+    private fun fetchInstances(): Map<String, GoogleInstance> {
+        return myConnector.fetchInstancesAsync<GoogleInstance>(mutableListOf(myImage)).get()[myImage]!!
+    }
+
+    private fun legacyMetadata() = mapOf(
+            GoogleConstants.TAG_SERVER to SERVER_ID,
+            GoogleConstants.TAG_PROFILE to PROFILE_ID,
+            GoogleConstants.TAG_SOURCE to myImage.imageDetails.sourceId,
+            GoogleConstants.TAG_DATA to createUserData(PROFILE_ID).serialize())
+
+    private fun labelsOf(name: String): Map<*, *> {
+        val instance = myServer.getInstances().first { it["name"] == name }
+        return instance["labels"] as? Map<*, *> ?: emptyMap<String, String>()
+    }
+
+    private fun waitFor(description: String, condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + TIMEOUT_MS
+        while (!condition()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting until $description")
+            }
+            Thread.sleep(50)
+        }
+    }
+
+    companion object {
+        private const val ENDPOINT_PROPERTY = "teamcity.cloud.google.api.endpoint"
+        private const val SNAPSHOT_MAX_AGE_PROPERTY = "teamcity.cloud.google.instances.snapshotMaxAgeSeconds"
+        private const val SERVER_ID = "server"
+        private const val PROFILE_ID = "profile"
+        private const val TIMEOUT_MS = 10000L
+    }
+}
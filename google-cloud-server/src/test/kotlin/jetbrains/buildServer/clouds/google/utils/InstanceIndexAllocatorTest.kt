@@ -0,0 +1,66 @@
+package jetbrains.buildServer.clouds.google.utils
+
+import org.testng.Assert.assertEquals
+import org.testng.annotations.Test
+import java.util.*
+
+@Test
+class InstanceIndexAllocatorTest {
+
+    fun should_allocate_lowest_free_index() {
+        val allocator = InstanceIndexAllocator("agent-")
+        allocator.markUsed("agent-2")
+        allocator.markUsed("agent-4")
+
+        assertEquals(allocator.allocate(), 1)
+        assertEquals(allocator.allocate(), 3)
+        assertEquals(allocator.allocate(), 5)
+    }
+
+    fun should_quarantine_released_index() {
+        val allocator = InstanceIndexAllocator("agent-")
+        assertEquals(allocator.allocate(), 1)
+        assertEquals(allocator.allocate(), 2)
+
+        allocator.release("agent-1")
+
+        assertEquals(allocator.allocate(), 3)
+    }
+
+    fun should_free_quarantined_index_when_instance_disappears() {
+        val allocator = InstanceIndexAllocator("agent-")
+        allocator.allocate()
+        allocator.allocate()
+        allocator.release("agent-1")
+        allocator.release("agent-2")
+
+        allocator.sync(listOf("agent-2"))
+
+        assertEquals(allocator.allocate(), 1)
+        assertEquals(allocator.allocate(), 3)
+    }
+
+    fun should_ignore_foreign_and_non_numeric_names() {
+        val allocator = InstanceIndexAllocator("agent-")
+        listOf("other-1", "agent-", "agent-x", "agent-1x", "agent-0", "agent-1234567890").forEach {
+            allocator.markUsed(it)
+            allocator.release(it)
+        }
+
+        assertEquals(allocator.allocate(), 1)
+    }
+
+    fun should_match_names_regardless_of_case_and_locale() {
+        val locale = Locale.getDefault()
+        Locale.setDefault(Locale("tr"))
+        try {
+            val allocator = InstanceIndexAllocator("AGENT-IMAGE-")
+            allocator.markUsed("agent-image-1")
+            allocator.markUsed("AGENT-IMAGE-2")
+
+            assertEquals(allocator.allocate(), 3)
+        } finally {
+            Locale.setDefault(locale)
+        }
+    }
+}
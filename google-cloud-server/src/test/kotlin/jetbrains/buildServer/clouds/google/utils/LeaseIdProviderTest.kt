@@ -0,0 +1,78 @@
+package jetbrains.buildServer.clouds.google.utils
+
+import jetbrains.buildServer.util.FileUtil
+import org.testng.Assert.assertEquals
+import org.testng.Assert.assertSame
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+@Test
+class LeaseIdProviderTest {
+
+    private lateinit var myDirectory: File
+    private lateinit var myFile: File
+
+    @BeforeMethod
+    fun setUp() {
+        myDirectory = Files.createTempDirectory("idx").toFile()
+        myFile = File(myDirectory, "image.idx")
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        FileUtil.delete(myDirectory)
+    }
+
+    fun should_reserve_separate_blocks_for_each_provider() {
+        val first = LeaseIdProvider(myFile, 3)
+        val second = LeaseIdProvider(myFile, 3)
+
+        assertEquals(first.nextId, 1)
+        assertEquals(second.nextId, 4)
+        assertEquals(first.nextId, 2)
+        assertEquals(first.nextId, 3)
+        assertEquals(first.nextId, 7)
+        assertEquals(myFile.readText(), "10")
+    }
+
+    fun should_continue_from_existing_idx_file() {
+        myFile.writeText("42")
+
+        val provider = LeaseIdProvider(myFile, 3)
+
+        assertEquals(provider.nextId, 42)
+        assertEquals(myFile.readText(), "45")
+    }
+
+    @Test(expectedExceptions = [IOException::class])
+    fun should_fail_on_invalid_idx_file() {
+        myFile.writeText("not a number")
+
+        LeaseIdProvider(myFile, 3).nextId
+    }
+
+    fun should_serve_unique_ids_concurrently() {
+        val providers = listOf(LeaseIdProvider(myFile, 5), LeaseIdProvider(myFile, 5))
+        val executor = Executors.newFixedThreadPool(8)
+        try {
+            val tasks = (0 until 8).map { thread ->
+                Callable { (0 until 200).map { providers[thread % 2].nextId } }
+            }
+            val ids = executor.invokeAll(tasks).flatMap { it.get() }
+
+            assertEquals(ids.toSet().size, ids.size)
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    fun should_share_provider_of_the_same_file() {
+        assertSame(LeaseIdProvider.forFile(myFile), LeaseIdProvider.forFile(File(myDirectory, "image.idx")))
+    }
+}